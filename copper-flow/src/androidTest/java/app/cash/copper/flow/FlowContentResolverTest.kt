@@ -16,15 +16,43 @@
 package app.cash.copper.flow
 
 import android.content.ContentResolver
+import android.net.Uri
+import android.os.Handler
+import android.os.Looper
 import android.test.ProviderTestCase2
+import app.cash.copper.LookupBatcher
+import app.cash.copper.ObservedQuery
+import app.cash.copper.Query
+import app.cash.copper.QueryKey
+import app.cash.copper.QueryParameters
+import app.cash.copper.batch
 import app.cash.copper.testing.TestContentProvider
 import app.cash.copper.testing.TestContentProvider.AUTHORITY
+import app.cash.copper.testing.TestContentProvider.KEY
 import app.cash.copper.testing.TestContentProvider.TABLE
+import app.cash.copper.testing.TestContentProvider.VALUE
 import app.cash.copper.testing.TestContentProvider.testValues
 import app.cash.copper.testing.assert
 import app.cash.turbine.test
+import com.google.common.truth.Truth.assertThat
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.yield
 import kotlin.time.ExperimentalTime
 
 @ExperimentalCoroutinesApi
@@ -92,4 +120,431 @@ class FlowContentResolverTest : ProviderTestCase2<TestContentProvider>(
       cancel()
     }
   }
+
+  fun testSharedQueriesExecuteOnce() = runBlocking {
+    contentResolver.insert(TABLE, testValues("key1", "val1"))
+
+    val mapped = AtomicInteger()
+    val operator: (Flow<Query>) -> Flow<List<String>> = { queries ->
+      queries.mapToList { cursor ->
+        mapped.incrementAndGet()
+        cursor.getString(0)
+      }
+    }
+    val sharedQueries = SharedQueries(contentResolver, this, stopTimeoutMillis = 0)
+    sharedQueries.observe(QueryKey(TABLE), operator).test {
+      assertThat(awaitItem()).containsExactly("key1")
+
+      sharedQueries.observe(QueryKey(TABLE), operator).test {
+        assertThat(awaitItem()).containsExactly("key1")
+        cancel()
+      }
+
+      cancel()
+    }
+    assertThat(mapped.get()).isEqualTo(1)
+  }
+
+  fun testChangeFilterSkipsRejectedUris() = runBlocking {
+    val otherTable = AUTHORITY.buildUpon().appendPath("other_table").build()
+    contentResolver.observeQuery(
+      AUTHORITY,
+      notifyForDescendants = true,
+      changeFilter = { uri -> uri == TABLE }
+    ).test {
+      assertThat((awaitItem() as ObservedQuery).change).isNull()
+
+      contentResolver.insert(otherTable, testValues("key1", "val1"))
+      contentResolver.insert(TABLE, testValues("key2", "val2"))
+      val change = (awaitItem() as ObservedQuery).change!!
+      assertThat(change.uris).containsExactly(TABLE)
+
+      cancel()
+    }
+  }
+
+  fun testParameterizedQueryRequeriesForParametersAndChanges() = runBlocking {
+    val parameters =
+      MutableStateFlow(QueryParameters(selection = "key = ?", selectionArgs = arrayOf("key1")))
+    contentResolver.observeQuery(TABLE, parameters).test {
+      assertThat((awaitItem() as ObservedQuery).change).isNull()
+
+      parameters.value = QueryParameters(selection = "key = ?", selectionArgs = arrayOf("key2"))
+      assertThat((awaitItem() as ObservedQuery).change).isNull()
+
+      contentResolver.insert(TABLE, testValues("key1", "val1"))
+      val query = awaitItem() as ObservedQuery
+      assertThat(query.change!!.uris).containsExactly(TABLE)
+      query.assert {
+        hasRow("key1", "val1")
+        isExhausted()
+      }
+
+      cancel()
+    }
+  }
+
+  fun testWithDeadlinePassesThroughTimelyResults() = runBlocking {
+    contentResolver.insert(TABLE, testValues("key1", "val1"))
+
+    contentResolver.observeQuery(TABLE)
+      .withDeadline(timeoutMillis = 5_000, reuseLastResult = true) { fail("Timed out") }
+      .test {
+        awaitItem().assert {
+          hasRow("key1", "val1")
+          isExhausted()
+        }
+
+        contentResolver.insert(TABLE, testValues("key2", "val2"))
+        awaitItem().assert {
+          hasRow("key1", "val1")
+          hasRow("key2", "val2")
+          isExhausted()
+        }
+
+        cancel()
+      }
+  }
+
+  fun testWithDeadlineIgnoresTimedOutQuery() = runBlocking {
+    val timedOut = AtomicInteger()
+
+    contentResolver.observeQuery(TABLE)
+      .withDeadline(timeoutMillis = 100) { timedOut.incrementAndGet() }
+      .test {
+        awaitItem().assert {
+          isExhausted()
+        }
+        assertThat(timedOut.get()).isEqualTo(0)
+
+        provider.setQueryDelay(500)
+        contentResolver.insert(TABLE, testValues("key1", "val1"))
+        assertThat(awaitItem().run()).isNull()
+        assertThat(timedOut.get()).isEqualTo(1)
+
+        cancel()
+      }
+  }
+
+  fun testWithDeadlineReusesLastResultOfTimedOutQuery() = runBlocking {
+    contentResolver.insert(TABLE, testValues("key1", "val1"))
+    val timedOut = AtomicInteger()
+
+    contentResolver.observeQuery(TABLE)
+      .withDeadline(timeoutMillis = 100, reuseLastResult = true) { timedOut.incrementAndGet() }
+      .test {
+        awaitItem().assert {
+          hasRow("key1", "val1")
+          isExhausted()
+        }
+
+        provider.setQueryDelay(500)
+        contentResolver.insert(TABLE, testValues("key2", "val2"))
+        awaitItem().assert {
+          hasRow("key1", "val1")
+          isExhausted()
+        }
+        assertThat(timedOut.get()).isEqualTo(1)
+
+        cancel()
+      }
+  }
+
+  fun testSharedQueriesWriteSuppressesPatchedEcho() = runBlocking {
+    val mapped = AtomicInteger()
+    val operator: (Flow<Query>) -> Flow<List<String>> = { queries ->
+      queries.mapToList { cursor ->
+        mapped.incrementAndGet()
+        cursor.getString(0)
+      }
+    }
+    val sharedQueries = SharedQueries(contentResolver, this, stopTimeoutMillis = 0)
+    sharedQueries.observe(QueryKey(TABLE), operator).test {
+      assertThat(awaitItem()).isEmpty()
+
+      sharedQueries.insert(TABLE, testValues("key1", "val1")) {
+        patch(QueryKey(TABLE), operator) { keys -> keys + "key1" }
+      }
+      assertThat(awaitItem()).containsExactly("key1")
+
+      contentResolver.insert(TABLE, testValues("key2", "val2"))
+      assertThat(awaitItem()).containsExactly("key1", "key2")
+      assertThat(mapped.get()).isEqualTo(2)
+
+      cancel()
+    }
+  }
+
+  fun testBatchHoldsRequeriesUntilItEnds() = runBlocking {
+    contentResolver.observeQuery(TABLE).test {
+      awaitItem().assert {
+        isExhausted()
+      }
+
+      // Send the fence through the resolver which the provider notifies through.
+      context.contentResolver.batch(TABLE) {
+        contentResolver.insert(TABLE, testValues("key1", "val1"))
+        contentResolver.insert(TABLE, testValues("key2", "val2"))
+      }
+      awaitItem().assert {
+        hasRow("key1", "val1")
+        hasRow("key2", "val2")
+        isExhausted()
+      }
+
+      // A late second requery for the batch would be seen ahead of the one for this insert.
+      contentResolver.insert(TABLE, testValues("key3", "val3"))
+      awaitItem().assert {
+        hasRow("key1", "val1")
+        hasRow("key2", "val2")
+        hasRow("key3", "val3")
+        isExhausted()
+      }
+
+      cancel()
+    }
+  }
+
+  fun testFrameDispatcherResumesOnMainThread() = runBlocking {
+    val looper = withContext(FrameDispatcher) { Looper.myLooper() }
+    assertThat(looper).isSameInstanceAs(Looper.getMainLooper())
+  }
+
+  fun testSharedQueriesCoalesceProjections() = runBlocking {
+    contentResolver.insert(TABLE, testValues("key1", "val1"))
+    val sharedQueries = SharedQueries(contentResolver, this, stopTimeoutMillis = 0)
+    sharedQueries.observeCoalesced(QueryKey(TABLE, arrayOf(KEY))).test {
+      awaitItem().assert {
+        hasRow("key1")
+      }
+
+      sharedQueries.observeCoalesced(QueryKey(TABLE, arrayOf(VALUE, KEY))).test {
+        awaitItem().assert {
+          hasRow("val1", "key1")
+        }
+        cancel()
+      }
+
+      // Requeried once with the union of both projections.
+      awaitItem().assert {
+        hasRow("key1")
+      }
+      cancel()
+    }
+  }
+
+  fun testTableMirrorEmitsOnlyForChangedRow() = runBlocking {
+    contentResolver.insert(TABLE, testValues("1", "val1"))
+    contentResolver.insert(TABLE, testValues("2", "val2"))
+    val mirrorScope = CoroutineScope(Dispatchers.Default)
+    val mirror = TableMirror(contentResolver, mirrorScope, QueryKey(TABLE), KEY)
+    mirror.mapToOneOrNull(2) { cursor -> cursor.getString(1) }.test {
+      assertThat(awaitItem()).isEqualTo("val2")
+
+      contentResolver.insert(TABLE, testValues("1", "changed1"))
+      contentResolver.insert(TABLE, testValues("2", "changed2"))
+      assertThat(awaitItem()).isEqualTo("changed2")
+
+      contentResolver.delete(TABLE, null, null)
+      assertThat(awaitItem()).isNull()
+
+      cancel()
+    }
+    mirrorScope.cancel()
+  }
+
+  fun testLookupBatcherReturnsOnlyRowsOfValue() = runBlocking {
+    contentResolver.insert(TABLE, testValues("key1", "val1"))
+    contentResolver.insert(TABLE, testValues("key2", "val2"))
+    val batcher = LookupBatcher(contentResolver, QueryKey(TABLE), KEY)
+    contentResolver.observeQuery(TABLE).map { batcher.lookup("key2") }.test {
+      awaitItem().assert {
+        hasRow("key2", "val2")
+      }
+      cancel()
+    }
+    batcher.lookup("key3").run()!!.use { cursor ->
+      assertThat(cursor.count).isEqualTo(0)
+    }
+  }
+
+  fun testSharedQueriesDiscardStaleResultAfterPatch() = runBlocking {
+    val blocked = CountDownLatch(1)
+    val release = CountDownLatch(1)
+    val operator: (Flow<Query>) -> Flow<List<String>> = { queries ->
+      queries.mapToList { cursor ->
+        if (cursor.getString(0) == "key1" && blocked.count > 0) {
+          blocked.countDown()
+          release.await()
+        }
+        cursor.getString(0)
+      }.flowOn(Dispatchers.IO)
+    }
+    val sharedQueries = SharedQueries(contentResolver, this, stopTimeoutMillis = 0)
+    sharedQueries.observe(QueryKey(TABLE), operator).test {
+      assertThat(awaitItem()).isEmpty()
+
+      // Start a requery which is still mapping when the patched write completes.
+      contentResolver.insert(TABLE, testValues("key1", "val1"))
+      withContext(Dispatchers.IO) { blocked.await() }
+
+      sharedQueries.insert(TABLE, testValues("key2", "val2")) {
+        patch(QueryKey(TABLE), operator) { keys -> keys + "key2" }
+      }
+      assertThat(awaitItem()).containsExactly("key2")
+
+      // The stale result is discarded and replaced by one which reflects the write.
+      release.countDown()
+      assertThat(awaitItem()).containsExactly("key1", "key2")
+
+      cancel()
+    }
+  }
+
+  fun testIncrementalListPatchesChangedRows() = runBlocking {
+    contentResolver.insert(TABLE, testValues("1", "a"))
+    contentResolver.insert(TABLE, testValues("2", "b"))
+    contentResolver.observeQuery(TABLE, notifyForDescendants = true)
+      .mapToListIncremental(idColumn = KEY) { cursor -> cursor.getString(1) }
+      .test {
+        assertThat(awaitItem()).containsExactly("a", "b").inOrder()
+
+        contentResolver.update(Uri.withAppendedPath(TABLE, "2"), testValues("2", "c"), null, null)
+        assertThat(awaitItem()).containsExactly("a", "c").inOrder()
+        assertThat(provider.selections().last()).isEqualTo("$KEY IN (?)")
+
+        contentResolver.insert(Uri.withAppendedPath(TABLE, "3"), testValues("3", "d"))
+        assertThat(awaitItem()).containsExactly("a", "c", "d").inOrder()
+        assertThat(provider.selections().last()).isEqualTo("$KEY IN (?)")
+
+        contentResolver.delete(Uri.withAppendedPath(TABLE, "1"), null, null)
+        assertThat(awaitItem()).containsExactly("c", "d").inOrder()
+        assertThat(provider.selections().last()).isEqualTo("$KEY IN (?)")
+
+        cancel()
+      }
+  }
+
+  fun testIncrementalListRunsFullQueryForManyChangedRows() = runBlocking {
+    contentResolver.observeQuery(TABLE, notifyForDescendants = true)
+      .mapToListIncremental(idColumn = KEY) { cursor -> cursor.getString(1) }
+      .test {
+        assertThat(awaitItem()).isEmpty()
+
+        context.contentResolver.batch(TABLE) {
+          for (id in 1..600) {
+            contentResolver.insert(Uri.withAppendedPath(TABLE, "$id"), testValues("$id", "v$id"))
+          }
+        }
+        var list = awaitItem()
+        while (list.size < 600) {
+          list = awaitItem()
+        }
+        // No query bound more ids than SQLite allows.
+        for (selection in provider.selections()) {
+          assertThat(selection.orEmpty().count { it == '?' }).isAtMost(500)
+        }
+
+        cancel()
+      }
+  }
+
+  fun testPauseWhileInactiveKeepsEveryChangedRow() = runBlocking {
+    contentResolver.insert(TABLE, testValues("1", "a"))
+    contentResolver.insert(TABLE, testValues("2", "b"))
+    val active = MutableStateFlow(true)
+    contentResolver.observeQuery(TABLE, notifyForDescendants = true)
+      .pauseWhileInactive(active)
+      .mapToListIncremental(idColumn = KEY) { cursor -> cursor.getString(1) }
+      .test {
+        assertThat(awaitItem()).containsExactly("a", "b").inOrder()
+
+        active.value = false
+        yield() // Let the operator observe the pause.
+        contentResolver.update(Uri.withAppendedPath(TABLE, "1"), testValues("1", "c"), null, null)
+        contentResolver.update(Uri.withAppendedPath(TABLE, "2"), testValues("2", "d"), null, null)
+        active.value = true
+        // Neither change may be lost, however the notifications interleave with resuming.
+        var list = awaitItem()
+        while (list != listOf("c", "d")) {
+          list = awaitItem()
+        }
+
+        cancel()
+      }
+  }
+
+  fun testLookupBatcherRunsConcurrentLookupsAsOneQuery() = runBlocking {
+    contentResolver.insert(TABLE, testValues("key1", "val1"))
+    contentResolver.insert(TABLE, testValues("key2", "val2"))
+    val batcher = LookupBatcher(contentResolver, QueryKey(TABLE), KEY, windowMillis = 100)
+    val queried = provider.selections().size
+
+    val results = listOf("key1", "key2", "key3").map { value ->
+      async(Dispatchers.IO) {
+        batcher.lookup(value).run()!!.use { cursor ->
+          List(cursor.count) {
+            cursor.moveToNext()
+            cursor.getString(1)
+          }
+        }
+      }
+    }.awaitAll()
+
+    assertThat(results).containsExactly(listOf("val1"), listOf("val2"), emptyList<String>())
+      .inOrder()
+    assertThat(provider.selections().drop(queried)).containsExactly("$KEY IN (?, ?, ?)")
+  }
+
+  fun testFrameDispatcherResumesPendingCoroutinesInOneFrame() = runBlocking {
+    val events = CopyOnWriteArrayList<String>()
+    val done = CountDownLatch(4)
+    val mainHandler = Handler(Looper.getMainLooper())
+    val scope = CoroutineScope(FrameDispatcher)
+    mainHandler.post {
+      // Launched from one main thread message, so all are pending before the next frame.
+      for (i in 1..3) {
+        scope.launch {
+          if (i == 1) {
+            mainHandler.post {
+              events += "next message"
+              done.countDown()
+            }
+          }
+          events += "resumed $i"
+          done.countDown()
+        }
+      }
+    }
+    withContext(Dispatchers.IO) { assertTrue(done.await(5, SECONDS)) }
+
+    // A message posted by the first coroutine runs only after the frame callback resumed all three.
+    assertThat(events)
+      .containsExactly("resumed 1", "resumed 2", "resumed 3", "next message")
+      .inOrder()
+  }
+
+  fun testSharedQueriesRollBackPatchOfFailedWrite() = runBlocking {
+    contentResolver.insert(TABLE, testValues("key1", "val1"))
+    val operator: (Flow<Query>) -> Flow<List<String>> = { queries ->
+      queries.mapToList { cursor -> cursor.getString(0) }
+    }
+    val sharedQueries = SharedQueries(contentResolver, this, stopTimeoutMillis = 0)
+    sharedQueries.observe(QueryKey(TABLE), operator).test {
+      assertThat(awaitItem()).containsExactly("key1")
+
+      try {
+        // No provider is registered for this authority, so the write fails.
+        sharedQueries.insert(Uri.parse("content://missing/table"), testValues("key2", "val2")) {
+          patch(QueryKey(TABLE), operator) { keys -> keys + "key2" }
+        }
+        fail()
+      } catch (expected: IllegalArgumentException) {
+      }
+      assertThat(awaitItem()).containsExactly("key1", "key2")
+      assertThat(awaitItem()).containsExactly("key1")
+
+      cancel()
+    }
+  }
 }
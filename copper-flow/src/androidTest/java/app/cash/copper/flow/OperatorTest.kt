@@ -16,16 +16,40 @@
 package app.cash.copper.flow
 
 import android.database.Cursor
+import app.cash.copper.BoundedList
+import app.cash.copper.Query
+import app.cash.copper.ResultBudget
+import app.cash.copper.ResultBudget.Overflow.ERROR
+import app.cash.copper.ResultTooLargeException
 import app.cash.copper.testing.Employee
 import app.cash.copper.testing.Employee.Companion.queryOf
 import app.cash.copper.testing.NullQuery
 import app.cash.copper.testing.assert
 import app.cash.turbine.test
 import com.google.common.truth.Truth.assertThat
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.Channel.Factory.UNLIMITED
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.consumeAsFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.flowOf
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.currentTime
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Assume.assumeTrue
 import org.junit.Test
+import kotlin.system.measureNanoTime
 import kotlin.time.ExperimentalTime
 
 @ExperimentalCoroutinesApi
@@ -135,6 +159,32 @@ class OperatorTest {
       }
   }
 
+  @Test fun mapToListAbandonsSupersededQuery() = runBlocking {
+    val started = CompletableDeferred<Unit>()
+    var staleRowsMapped = 0
+    val mapper: (Cursor) -> Employee = { cursor ->
+      val employee = Employee.MAPPER(cursor)
+      if (employee.username.startsWith("stale")) {
+        started.complete(Unit)
+        staleRowsMapped++
+        Thread.sleep(1)
+      }
+      employee
+    }
+    val staleRows = Array(2_000) { "stale$it" } // 1,000 username and name pairs.
+    flow {
+      emit(queryOf(*staleRows))
+      started.await()
+      emit(queryOf("alice", "Alice Allison"))
+    }
+      .mapToList(mapper = mapper)
+      .test {
+        assertThat(awaitItem()).containsExactly(Employee("alice", "Alice Allison"))
+        awaitComplete()
+      }
+    assertThat(staleRowsMapped).isLessThan(staleRows.size / 2)
+  }
+
   @Test fun mapToListIgnoresNullCursor() = runBlocking {
     flowOf(NullQuery)
       .mapToList(mapper = Employee.MAPPER)
@@ -170,4 +220,427 @@ class OperatorTest {
         awaitComplete()
       }
   }
+
+  @Test fun mapToLazyListMapsOnAccess() = runBlocking {
+    var mapped = 0
+    val mapper: (Cursor) -> Employee = { cursor ->
+      mapped++
+      Employee.MAPPER(cursor)
+    }
+    flowOf(queryOf("alice", "Alice Allison", "bob", "Bob Bobberson", "eve", "Eve Evenson"))
+      .mapToLazyList(mapper = mapper)
+      .test {
+        val employees = awaitItem()
+        assertThat(mapped).isEqualTo(0)
+        assertThat(employees).hasSize(3)
+
+        assertThat(employees[1]).isEqualTo(Employee("bob", "Bob Bobberson"))
+        assertThat(employees[1]).isEqualTo(Employee("bob", "Bob Bobberson"))
+        assertThat(mapped).isEqualTo(1)
+        awaitComplete()
+      }
+  }
+
+  @Test fun mapToLazyListIgnoresNullCursor() = runBlocking {
+    flowOf(NullQuery)
+      .mapToLazyList(mapper = Employee.MAPPER)
+      .test {
+        awaitComplete()
+      }
+  }
+
+  @Test fun mapToMap() = runBlocking {
+    flowOf(queryOf("1", "Alice Allison", "2", "Bob Bobberson", "1", "Alice Aliason"))
+      .mapToMap(keyColumn = "username", mapper = Employee.MAPPER)
+      .test {
+        val employees = awaitItem()
+        assertThat(employees.size).isEqualTo(2)
+        assertThat(employees[1L]).isEqualTo(Employee("1", "Alice Aliason"))
+        assertThat(employees[2]).isEqualTo(Employee("2", "Bob Bobberson"))
+        assertThat(employees[3L]).isNull()
+        assertThat(employees.keyAt(1)).isEqualTo(2L)
+        awaitComplete()
+      }
+  }
+
+  @Test fun mapToMapIgnoresNullCursor() = runBlocking {
+    flowOf(NullQuery)
+      .mapToMap(keyColumn = "username", mapper = Employee.MAPPER)
+      .test {
+        awaitComplete()
+      }
+  }
+
+  @Test fun mapToCount() = runBlocking {
+    flowOf(queryOf("alice", "Alice Allison", "bob", "Bob Bobberson", "eve", "Eve Evenson"))
+      .mapToCount()
+      .test {
+        assertThat(awaitItem()).isEqualTo(3)
+        awaitComplete()
+      }
+  }
+
+  @Test fun foldRows() = runBlocking {
+    flowOf(queryOf("alice", "Alice Allison", "bob", "Bob Bobberson", "eve", "Eve Evenson"))
+      .foldRows(initial = false) { anyBob, cursor ->
+        anyBob || Employee.MAPPER(cursor).username == "bob"
+      }
+      .test {
+        assertThat(awaitItem()).isTrue()
+        awaitComplete()
+      }
+  }
+
+  @Test fun foldRowsToLong() = runBlocking {
+    flowOf(queryOf("1", "Alice Allison", "20", "Bob Bobberson", "300", "Eve Evenson"))
+      .foldRowsToLong(initial = 0L) { sum, cursor -> sum + cursor.getLong(0) }
+      .test {
+        assertThat(awaitItem()).isEqualTo(321L)
+        awaitComplete()
+      }
+  }
+
+  @Test fun foldRowsToLongIgnoresNullCursor() = runBlocking {
+    flowOf(NullQuery)
+      .foldRowsToLong(initial = 0L) { sum, cursor -> sum + cursor.getLong(0) }
+      .test {
+        awaitComplete()
+      }
+  }
+
+  @Test fun mapToListPipelined() = runBlocking {
+    flowOf(queryOf("alice", "Alice Allison", "bob", "Bob Bobberson", "eve", "Eve Evenson"))
+      .mapToListPipelined(mapper = Employee.MAPPER)
+      .test {
+        assertThat(awaitItem()).containsExactly(
+          Employee("alice", "Alice Allison"),
+          Employee("bob", "Bob Bobberson"),
+          Employee("eve", "Eve Evenson")
+        )
+        awaitComplete()
+      }
+  }
+
+  @Test fun mapToListPipelinedIgnoresNullCursor() = runBlocking {
+    flowOf(NullQuery)
+      .mapToListPipelined(mapper = Employee.MAPPER)
+      .test {
+        awaitComplete()
+      }
+  }
+
+  @Test fun mapToListParallelPreservesOrder() = runBlocking {
+    val values = Array(4_000) { "employee${it / 2}" } // 2,000 username and name pairs.
+    flowOf(queryOf(*values))
+      .mapToListParallel(parallelism = 4, mapper = Employee.MAPPER)
+      .test {
+        val employees = awaitItem()
+        assertThat(employees).hasSize(2_000)
+        employees.forEachIndexed { index, employee ->
+          assertThat(employee).isEqualTo(Employee("employee$index", "employee$index"))
+        }
+        awaitComplete()
+      }
+  }
+
+  @Test fun mapToListParallelEmptyWhenNoRows() = runBlocking {
+    flowOf(queryOf())
+      .mapToListParallel(mapper = Employee.MAPPER)
+      .test {
+        assertThat(awaitItem()).isEmpty()
+        awaitComplete()
+      }
+  }
+
+  @Test fun mapToListParallelSpeedsUpExpensiveMappers() = runBlocking {
+    val cores = Runtime.getRuntime().availableProcessors()
+    assumeTrue("Requires more than one core", cores > 1)
+    val values = Array(8_192) { "employee${it / 2}" } // 4,096 username and name pairs.
+    val mapper = { cursor: Cursor ->
+      // Stand in for an expensive mapper by spinning for 20µs per row.
+      val deadline = System.nanoTime() + 20_000
+      while (System.nanoTime() < deadline) {
+      }
+      Employee.MAPPER(cursor)
+    }
+    suspend fun bestOfThreeNanos(parallelism: Int): Long {
+      return (1..3).minOf {
+        measureNanoTime {
+          flowOf(queryOf(*values)).mapToListParallel(parallelism, mapper = mapper).first()
+        }
+      }
+    }
+
+    val oneChunk = bestOfThreeNanos(parallelism = 1)
+    val chunks = bestOfThreeNanos(parallelism = cores)
+    assertThat(chunks).isLessThan(oneChunk * 3 / 4)
+  }
+
+  @Test fun mapSnapshotRunsQueryOnce() = runBlocking {
+    var runs = 0
+    val employees = queryOf("alice", "Alice Allison", "bob", "Bob Bobberson")
+    val query = object : Query {
+      override fun run(): Cursor? {
+        runs++
+        return employees.run()
+      }
+    }
+    flowOf(query)
+      .mapSnapshot { snapshot -> snapshot.mapRows(Employee.MAPPER) to snapshot.count }
+      .test {
+        assertThat(awaitItem()).isEqualTo(
+          listOf(Employee("alice", "Alice Allison"), Employee("bob", "Bob Bobberson")) to 2
+        )
+        awaitComplete()
+      }
+    assertThat(runs).isEqualTo(1)
+  }
+
+  @Test fun mapSnapshotIgnoresNullCursor() = runBlocking {
+    flowOf(NullQuery)
+      .mapSnapshot { snapshot -> snapshot.count }
+      .test {
+        awaitComplete()
+      }
+  }
+
+  @Test fun pauseWhileInactiveEmitsLatestOnResume() = runBlocking {
+    val active = MutableStateFlow(false)
+    val queries = Channel<Query>(UNLIMITED)
+    val query = queryOf("alice", "Alice Allison")
+    queries.consumeAsFlow()
+      .pauseWhileInactive(active)
+      .test {
+        queries.send(query)
+        expectNoEvents()
+
+        active.value = true
+        assertThat(awaitItem()).isSameInstanceAs(query)
+        cancel()
+      }
+  }
+
+  @Test fun mapToListIncrementalRunsFullQueryWithoutChange() = runBlocking {
+    flowOf(
+      queryOf("1", "Alice Allison", "2", "Bob Bobberson"),
+      queryOf("1", "Alice Allison", "3", "Eve Evenson")
+    )
+      .mapToListIncremental(idColumn = "username", mapper = Employee.MAPPER)
+      .test {
+        assertThat(awaitItem()).containsExactly(
+          Employee("1", "Alice Allison"),
+          Employee("2", "Bob Bobberson")
+        )
+        assertThat(awaitItem()).containsExactly(
+          Employee("1", "Alice Allison"),
+          Employee("3", "Eve Evenson")
+        )
+        awaitComplete()
+      }
+  }
+
+  @Test fun mapToListIncrementalIgnoresNullCursor() = runBlocking {
+    flowOf(NullQuery)
+      .mapToListIncremental(idColumn = "username", mapper = Employee.MAPPER)
+      .test {
+        awaitComplete()
+      }
+  }
+
+  @Test fun mapToListBoundedTruncates() = runBlocking {
+    flowOf(queryOf("alice", "Alice Allison", "bob", "Bob Bobberson", "eve", "Eve Evenson"))
+      .mapToListBounded(ResultBudget(maxRows = 2), mapper = Employee.MAPPER)
+      .test {
+        val employees = awaitItem()
+        assertThat(employees).containsExactly(
+          Employee("alice", "Alice Allison"),
+          Employee("bob", "Bob Bobberson")
+        )
+        assertThat(employees.isTruncated).isTrue()
+        awaitComplete()
+      }
+  }
+
+  @Test fun mapToListBoundedWithinBudget() = runBlocking {
+    flowOf(queryOf("alice", "Alice Allison", "bob", "Bob Bobberson"))
+      .mapToListBounded(ResultBudget(maxRows = 2, maxBytes = 1_000), mapper = Employee.MAPPER)
+      .test {
+        val employees = awaitItem()
+        assertThat(employees).hasSize(2)
+        assertThat(employees.isTruncated).isFalse()
+        awaitComplete()
+      }
+  }
+
+  @Test fun boundedListEqualityIgnoresTruncation() {
+    val items = listOf(Employee("alice", "Alice Allison"))
+    val truncated = BoundedList(items, isTruncated = true)
+    assertThat(truncated).isEqualTo(items)
+    assertThat(items).isEqualTo(truncated)
+    assertThat(truncated).isEqualTo(BoundedList(items, isTruncated = false))
+    assertThat(truncated.hashCode()).isEqualTo(items.hashCode())
+    assertThat(truncated).isNotEqualTo(emptyList<Employee>())
+  }
+
+  @Test fun mapToListBoundedThrowsOnOverflow() = runBlocking {
+    flowOf(queryOf("alice", "Alice Allison", "bob", "Bob Bobberson"))
+      .mapToListBounded(ResultBudget(maxBytes = 20, overflow = ERROR), mapper = Employee.MAPPER)
+      .test {
+        awaitError().assert {
+          isInstanceOf(ResultTooLargeException::class.java)
+          hasMessageThat().isEqualTo("Cursor returned more than 20 bytes")
+        }
+      }
+  }
+
+  @Test fun rateLimitByCostEmitsFirstQueryImmediately() = runBlocking {
+    flowOf(queryOf("alice", "Alice Allison"))
+      .rateLimitByCost(dutyCycle = 0.5)
+      .mapToOne(mapper = Employee.MAPPER)
+      .test {
+        assertThat(awaitItem()).isEqualTo(Employee("alice", "Alice Allison"))
+        awaitComplete()
+      }
+  }
+
+  @Test fun rateLimitByCostDelaysByMeasuredCost() = runTest {
+    val queries = Channel<Query>(UNLIMITED)
+    val emitted = rateLimitAfterCostlyQuery(queries)
+
+    // At a duty cycle of 0.5 the next query may only start 200ms after the first.
+    queries.send(queryOf("bob", "Bob Bobberson"))
+    advanceTimeBy(99)
+    assertThat(emitted.tryReceive().isSuccess).isFalse()
+    advanceTimeBy(1)
+    runCurrent()
+    assertThat(emitted.receive().employee()).isEqualTo(Employee("bob", "Bob Bobberson"))
+  }
+
+  @Test fun rateLimitByCostCollapsesBurst() = runTest {
+    val queries = Channel<Query>(UNLIMITED)
+    val emitted = rateLimitAfterCostlyQuery(queries)
+
+    queries.send(queryOf("bob", "Bob Bobberson"))
+    advanceTimeBy(50)
+    queries.send(queryOf("eve", "Eve Evenson"))
+    advanceTimeBy(25)
+    queries.send(queryOf("fred", "Fred Frederson"))
+    advanceUntilIdle()
+    assertThat(currentTime).isEqualTo(200)
+    assertThat(emitted.receive().employee()).isEqualTo(Employee("fred", "Fred Frederson"))
+    assertThat(emitted.tryReceive().isSuccess).isFalse()
+  }
+
+  @Test fun rateLimitByCostStopsDelayingOnceChangesStop() = runTest {
+    val queries = Channel<Query>(UNLIMITED)
+    val emitted = rateLimitAfterCostlyQuery(queries)
+
+    advanceTimeBy(1_000)
+    queries.send(queryOf("bob", "Bob Bobberson"))
+    runCurrent()
+    assertThat(emitted.tryReceive().getOrThrow().employee())
+      .isEqualTo(Employee("bob", "Bob Bobberson"))
+  }
+
+  /**
+   * Rate limits [queries] in virtual time, and runs a first query for them which takes 100ms to
+   * run and map. Returns the rate limited queries.
+   */
+  private suspend fun TestScope.rateLimitAfterCostlyQuery(queries: Channel<Query>): Channel<Query> {
+    val emitted = Channel<Query>(UNLIMITED)
+    backgroundScope.launch {
+      queries.consumeAsFlow()
+        .rateLimitByCost(dutyCycle = 0.5, timeSource = testScheduler.timeSource)
+        .collect { emitted.send(it) }
+    }
+    queries.send(queryOf("alice", "Alice Allison"))
+    runCurrent()
+    val cursor = emitted.tryReceive().getOrThrow().run()!!
+    advanceTimeBy(100)
+    cursor.close()
+    return emitted
+  }
+
+  private fun Query.employee(): Employee {
+    return run()!!.use { cursor ->
+      assertThat(cursor.moveToNext()).isTrue()
+      Employee.MAPPER(cursor)
+    }
+  }
+
+  @Test fun mapToOneInlineWhenCheap() = runBlocking {
+    val executor = Executors.newSingleThreadExecutor { Thread(it, "query") }
+    try {
+      val queries = Channel<Query>(UNLIMITED)
+      queries.consumeAsFlow()
+        .mapToOne(
+          dispatcher = executor.asCoroutineDispatcher(),
+          inlineThresholdMicros = 1_000_000
+        ) { Thread.currentThread().name }
+        .test {
+          // The first query is always dispatched so that its cost can be measured.
+          queries.send(queryOf("alice", "Alice Allison"))
+          assertThat(awaitItem()).isEqualTo("query")
+
+          // Subsequent queries run on the collecting thread instead.
+          queries.send(queryOf("bob", "Bob Bobberson"))
+          assertThat(awaitItem()).isNotEqualTo("query")
+
+          queries.close()
+          awaitComplete()
+        }
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  @Test fun mapToOneDispatchesWhenExpensive() = runBlocking {
+    val executor = Executors.newSingleThreadExecutor { Thread(it, "query") }
+    try {
+      val queries = Channel<Query>(UNLIMITED)
+      queries.consumeAsFlow()
+        .mapToOne(
+          dispatcher = executor.asCoroutineDispatcher(),
+          inlineThresholdMicros = 1_000
+        ) {
+          Thread.sleep(10)
+          Thread.currentThread().name
+        }
+        .test {
+          queries.send(queryOf("alice", "Alice Allison"))
+          assertThat(awaitItem()).isEqualTo("query")
+
+          queries.send(queryOf("bob", "Bob Bobberson"))
+          assertThat(awaitItem()).isEqualTo("query")
+
+          queries.close()
+          awaitComplete()
+        }
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  @Test fun mapToListConcurrentDiscardsOlderResult() = runBlocking {
+    val started = CompletableDeferred<Unit>()
+    val newerEmitted = CountDownLatch(1)
+    val slow = object : Query {
+      override fun run(): Cursor? {
+        started.complete(Unit)
+        newerEmitted.await()
+        return queryOf("stale", "Stale Staleson").run()
+      }
+    }
+    flow {
+      emit(slow)
+      started.await()
+      emit(queryOf("alice", "Alice Allison"))
+    }
+      .mapToListConcurrent(maxConcurrency = 2, mapper = Employee.MAPPER)
+      .test {
+        assertThat(awaitItem()).containsExactly(Employee("alice", "Alice Allison"))
+        newerEmitted.countDown()
+        awaitComplete()
+      }
+  }
 }
@@ -18,26 +18,56 @@
 package app.cash.copper.flow
 
 import android.content.ContentResolver
-import android.database.ContentObserver
 import android.database.Cursor
 import android.net.Uri
-import android.os.Handler
-import android.os.Looper
 import androidx.annotation.CheckResult
+import app.cash.copper.BoundedList
+import app.cash.copper.ChangeObserver
 import app.cash.copper.ContentResolverQuery
+import app.cash.copper.CursorSnapshot
+import app.cash.copper.IncrementalListMapper
+import app.cash.copper.InlineCostGate
+import app.cash.copper.LongKeyMap
+import app.cash.copper.LongRowFolder
+import app.cash.copper.ObservedQuery
 import app.cash.copper.Query
+import app.cash.copper.QueryCostTracker
+import app.cash.copper.QueryDeadline
+import app.cash.copper.QueryKey
+import app.cash.copper.QueryParameters
+import app.cash.copper.ResultBudget
+import app.cash.copper.coalesce
+import app.cash.copper.mapLazily
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
 import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.channels.Channel.Factory.CONFLATED
 import kotlinx.coroutines.channels.Channel.Factory.RENDEZVOUS
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.buffer
 import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.emitAll
 import kotlinx.coroutines.flow.flow
-import kotlinx.coroutines.flow.transform
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.merge
+import kotlinx.coroutines.flow.transformLatest
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
+import kotlin.coroutines.resume
+import kotlin.time.TimeSource
 
 /**
  * Create an observable which will notify subscribers with a [query][Query] for
@@ -48,6 +78,20 @@ import kotlinx.coroutines.withContext
  * notifications for when the supplied `uri`'s data changes. Unsubscribe when you no longer
  * want updates to a query.
  *
+ * The content observer is registered and unregistered on a background thread rather than the
+ * calling thread. The initial query is emitted only once registration has completed so that no
+ * change made after it runs is missed.
+ *
+ * Each emitted query is an [ObservedQuery] whose [change][ObservedQuery.change] describes the
+ * URIs and flags of the notifications which triggered it, and whose
+ * [generation][ObservedQuery.generation] counts up from 0 for each collection. Notifications
+ * which arrive before the previous query is collected are coalesced into a single query. When
+ * [changeFilter] is supplied, only notifications for at least one URI which it accepts trigger a
+ * query. For example, to only requery for changes to some descendants with `notifyForDescendants`:
+ * ```
+ * changeFilter = { uri -> matcher.match(uri) != UriMatcher.NO_MATCH }
+ * ```
+ *
  * Note: To skip the immediate notification and only receive subsequent notifications when data
  * has changed call `drop(1)` on the returned observable.
  *
@@ -64,31 +108,223 @@ fun ContentResolver.observeQuery(
   selection: String? = null,
   selectionArgs: Array<String>? = null,
   sortOrder: String? = null,
-  notifyForDescendants: Boolean = false
+  notifyForDescendants: Boolean = false,
+  changeFilter: ((Uri) -> Boolean)? = null
 ): Flow<Query> {
   val query = ContentResolverQuery(this, uri, projection, selection, selectionArgs, sortOrder)
   return flow {
-    emit(query)
-
     val channel = Channel<Unit>(CONFLATED)
-    val observer = object : ContentObserver(mainThread) {
-      override fun onChange(selfChange: Boolean) {
+    val observer = object : ChangeObserver(changeFilter) {
+      override fun onQueryChange() {
         channel.trySend(Unit)
       }
     }
 
-    registerContentObserver(uri, notifyForDescendants, observer)
     try {
+      observer.awaitRegister(this@observeQuery, uri, notifyForDescendants)
+      observer.takeChange() // Changes since registration are seen by the initial query.
+      var generation = 0L
+      emit(ObservedQuery(query, null, generation++))
+
       for (item in channel) {
-        emit(query)
+        val change = observer.takeChange() ?: continue
+        emit(ObservedQuery(query, change, generation++))
       }
     } finally {
-      unregisterContentObserver(observer)
+      observer.unregister(this@observeQuery)
+    }
+  }
+}
+
+/**
+ * Create an observable which will notify subscribers with a [query][Query] of [uri] for execution
+ * using the most recent [parameters]. Collectors are responsible for **always** closing [Cursor]
+ * instance returned from the [Query].
+ *
+ * Use this function instead of calling [observeQuery] again whenever the query's selection
+ * changes, such as for search-as-you-type screens. A single content observer stays registered for
+ * [uri] regardless of how many times [parameters] changes.
+ *
+ * No query is emitted until [parameters] emits its first value. Each new value then triggers a
+ * query whose [change][ObservedQuery.change] is null, and content changes trigger a query with
+ * the current value. Parameter and content changes which arrive before the previous query is
+ * collected are coalesced into a single query. Combined with the mapping operators, which abandon
+ * a query that is still being mapped when a newer one is received, only the result for the most
+ * recent parameters is emitted.
+ *
+ * **Warning:** this method does not perform the query! Only by collecting the returned [Flow] will
+ * the operation occur.
+ *
+ * @see ContentResolver.query
+ * @see ContentResolver.registerContentObserver
+ */
+@CheckResult
+fun ContentResolver.observeQuery(
+  uri: Uri,
+  parameters: Flow<QueryParameters>,
+  notifyForDescendants: Boolean = false,
+  changeFilter: ((Uri) -> Boolean)? = null
+): Flow<Query> = flow {
+  val signals = Channel<Unit>(CONFLATED)
+  val latest = AtomicReference<QueryParameters>()
+  val observer = object : ChangeObserver(changeFilter) {
+    override fun onQueryChange() {
+      signals.trySend(Unit)
+    }
+  }
+
+  try {
+    observer.awaitRegister(this@observeQuery, uri, notifyForDescendants)
+    coroutineScope {
+      launch {
+        parameters.collect { value ->
+          latest.set(value)
+          signals.trySend(Unit)
+        }
+      }
+
+      var current: QueryParameters? = null
+      var query: ContentResolverQuery? = null
+      var generation = 0L
+      for (item in signals) {
+        val next = latest.get() ?: continue
+        val change = observer.takeChange()
+        if (next != current) {
+          current = next
+          query = ContentResolverQuery(
+            this@observeQuery, uri, next.projection, next.selection, next.selectionArgs,
+            next.sortOrder
+          )
+          emit(ObservedQuery(query, null, generation++))
+        } else if (change != null) {
+          emit(ObservedQuery(query!!, change, generation++))
+        }
+      }
     }
+  } finally {
+    observer.unregister(this@observeQuery)
   }
 }
 
-private val mainThread = Handler(Looper.getMainLooper())
+internal fun ContentResolver.observeQuery(
+  key: QueryKey,
+  changeFilter: ((Uri) -> Boolean)? = null
+): Flow<Query> {
+  return observeQuery(
+    key.uri,
+    key.projection,
+    key.selection,
+    key.selectionArgs,
+    key.sortOrder,
+    key.notifyForDescendants,
+    changeFilter
+  )
+}
+
+/**
+ * Register this observer without blocking the calling thread, suspending until registration has
+ * completed. Callers must [unregister][ChangeObserver.unregister] even if this call is canceled.
+ */
+private suspend fun ChangeObserver.awaitRegister(
+  contentResolver: ContentResolver,
+  uri: Uri,
+  notifyForDescendants: Boolean
+) {
+  suspendCancellableCoroutine<Unit> { continuation ->
+    register(contentResolver, uri, notifyForDescendants) { continuation.resume(Unit) }
+  }
+}
+
+/**
+ * Forward queries from this flow only while [active] most recently emitted true.
+ *
+ * Queries received while inactive are not executed. Instead, only the most recent is retained
+ * and it is emitted once when [active] next emits true, so that any number of changes while
+ * inactive result in a single requery. No queries are emitted until [active] first emits true.
+ *
+ * The [change][ObservedQuery.change] of the emitted query is merged with those of the queries it
+ * replaced, so operators which inspect it, such as [mapToListIncremental], see every change made
+ * while inactive.
+ *
+ * Use this operator ahead of mapping operators to stop observers of backgrounded screens from
+ * requerying, for example with an active flow derived from a lifecycle's started state.
+ */
+@CheckResult
+fun Flow<Query>.pauseWhileInactive(active: Flow<Boolean>): Flow<Query> = flow {
+  var isActive = false
+  var pending: Query? = null
+  merge(active.distinctUntilChanged(), this@pauseWhileInactive).collect { event ->
+    if (event is Boolean) {
+      isActive = event
+      val query = pending
+      if (isActive && query != null) {
+        pending = null
+        emit(query)
+      }
+    } else if (isActive) {
+      emit(event as Query)
+    } else {
+      val query = event as Query
+      pending = pending?.let { coalesce(it, query) } ?: query
+    }
+  }
+}
+
+/**
+ * Limit each query from this flow to [timeoutMillis]. A query which the provider has not answered
+ * in time is canceled through a [CancellationSignal][android.os.CancellationSignal] and
+ * [onTimeout] is invoked on the thread which ran the query.
+ *
+ * By default a timed out query returns a `null` cursor, which mapping operators ignore so that
+ * the stream does not stall and the previous result remains current. When [reuseLastResult] is
+ * true, the last successful result is returned again instead so it is re-emitted. This copies
+ * every result into memory.
+ *
+ * Only queries emitted from [observeQuery] can be canceled. Queries returned from this operator
+ * are not [ObservedQuery] instances, so operators which inspect the triggering change (such as
+ * [mapToListIncremental]) always run the full query.
+ */
+@CheckResult
+fun Flow<Query>.withDeadline(
+  timeoutMillis: Long,
+  reuseLastResult: Boolean = false,
+  onTimeout: (Query) -> Unit = {}
+): Flow<Query> = flow {
+  val deadline = QueryDeadline(timeoutMillis, reuseLastResult, onTimeout)
+  collect { query -> emit(deadline.wrap(query)) }
+}
+
+/**
+ * Space out queries from this flow so that executing and mapping them takes no more than
+ * [dutyCycle] of the elapsed time. For example, with the default of 0.2 a query which takes 50ms
+ * to run and map is started at most every 250ms.
+ *
+ * The cost of each query is measured from the start of [Query.run] until its cursor is closed,
+ * so the mapping operator must be applied downstream of this one. Queries received while waiting
+ * replace the pending query, so a burst of changes results in a single query. Once changes stop,
+ * the next one is emitted without delay.
+ *
+ * Queries returned from this operator are not [ObservedQuery] instances, so operators which
+ * inspect the triggering change (such as [mapToListIncremental]) always run the full query.
+ *
+ * @param timeSource Measures the cost of each query. Use the test scheduler's time source to
+ * measure in virtual time.
+ */
+@OptIn(ExperimentalCoroutinesApi::class) // Relies on transformLatest.
+@CheckResult
+fun Flow<Query>.rateLimitByCost(
+  dutyCycle: Double = 0.2,
+  timeSource: TimeSource = TimeSource.Monotonic
+): Flow<Query> = flow {
+  val start = timeSource.markNow()
+  val tracker = QueryCostTracker(dutyCycle) { start.elapsedNow().inWholeNanoseconds }
+  emitAll(
+    transformLatest { query ->
+      delay(tracker.delayMillis())
+      emit(tracker.wrap(query))
+    }
+  )
+}
 
 /**
  * Execute the query on the underlying database and return a flow of each row mapped to
@@ -136,30 +372,43 @@ fun <T : Any> Query.asRows(
  * set. Use `LIMIT 1` on the underlying SQL query to prevent this. Result sets with 0 rows
  * emit [default], or do not emit if [default] is null.
  *
- * This operator ignores `null` cursors returned from [Query.run].
+ * This operator ignores `null` cursors returned from [Query.run]. A query which is still being
+ * executed when a newer query is received is cancelled and its result discarded.
  *
+ * @param inlineThresholdMicros When positive, queries whose recent cost of running and mapping
+ * is below this many microseconds run inline on the collecting thread instead of on [dispatcher],
+ * unless that is the main thread. Use this for cheap lookups, such as from an in-process
+ * provider, where the dispatch costs more than the query.
  * @param mapper Maps the current [Cursor] row to `T`. May not return null.
  */
+@OptIn(ExperimentalCoroutinesApi::class) // Relies on transformLatest.
 @CheckResult
 fun <T : Any> Flow<Query>.mapToOne(
   default: T? = null,
   dispatcher: CoroutineDispatcher = Dispatchers.IO,
+  inlineThresholdMicros: Long = 0L,
   mapper: (Cursor) -> T
-): Flow<T> = transform { query ->
-  val item = withContext(dispatcher) {
-    query.run()?.use { cursor ->
-      if (cursor.moveToNext()) {
-        val item = mapper(cursor)
-        check(!cursor.moveToNext()) { "Cursor returned more than 1 row" }
-        item
-      } else {
-        default
+): Flow<T> = flow {
+  val gate = InlineCostGate(inlineThresholdMicros)
+  emitAll(
+    transformLatest { query ->
+      val item = gate.runQuery(dispatcher) {
+        query.run()?.use { cursor ->
+          ensureActive()
+          if (cursor.moveToNext()) {
+            val item = mapper(cursor)
+            check(!cursor.moveToNext()) { "Cursor returned more than 1 row" }
+            item
+          } else {
+            default
+          }
+        }
+      }
+      if (item != null) {
+        emit(item)
       }
     }
-  }
-  if (item != null) {
-    emit(item)
-  }
+  )
 }
 
 /**
@@ -169,34 +418,62 @@ fun <T : Any> Flow<Query>.mapToOne(
  * set. Use `LIMIT 1` on the underlying SQL query to prevent this. Result sets with 0 rows
  * emit null.
  *
- * This operator ignores `null` cursors returned from [Query.run].
+ * This operator ignores `null` cursors returned from [Query.run]. A query which is still being
+ * executed when a newer query is received is cancelled and its result discarded.
  *
+ * @param inlineThresholdMicros When positive, queries whose recent cost of running and mapping
+ * is below this many microseconds run inline on the collecting thread instead of on [dispatcher],
+ * unless that is the main thread. Use this for cheap lookups, such as from an in-process
+ * provider, where the dispatch costs more than the query.
  * @param mapper Maps the current [Cursor] row to `T`. May not return null.
  */
+@OptIn(ExperimentalCoroutinesApi::class) // Relies on transformLatest.
 @CheckResult
 fun <T : Any> Flow<Query>.mapToOneOrNull(
   dispatcher: CoroutineDispatcher = Dispatchers.IO,
+  inlineThresholdMicros: Long = 0L,
   mapper: (Cursor) -> T
-): Flow<T?> = transform { query ->
-  val (emit, item) = withContext(dispatcher) {
-    val cursor = query.run()
-    if (cursor == null) {
-      false to null
-    } else {
-      cursor.use {
-        val item = if (cursor.moveToNext()) {
-          val item = mapper(cursor)
-          check(!cursor.moveToNext()) { "Cursor returned more than 1 row" }
-          item
+): Flow<T?> = flow {
+  val gate = InlineCostGate(inlineThresholdMicros)
+  emitAll(
+    transformLatest { query ->
+      val (emit, item) = gate.runQuery(dispatcher) {
+        val cursor = query.run()
+        if (cursor == null) {
+          false to null
         } else {
-          null
+          cursor.use {
+            ensureActive()
+            val item = if (cursor.moveToNext()) {
+              val item = mapper(cursor)
+              check(!cursor.moveToNext()) { "Cursor returned more than 1 row" }
+              item
+            } else {
+              null
+            }
+            true to item
+          }
         }
-        true to item
+      }
+      if (emit) {
+        emit(item)
       }
     }
-  }
-  if (emit) {
-    emit(item)
+  )
+}
+
+/**
+ * Run [block] on [dispatcher], or inline on the current thread when this gate considers it cheap
+ * enough to not be worth the dispatch.
+ */
+private suspend fun <R> InlineCostGate.runQuery(
+  dispatcher: CoroutineDispatcher,
+  block: CoroutineScope.() -> R
+): R {
+  return if (shouldRunInline()) {
+    coroutineScope { measure { block() } }
+  } else {
+    withContext(dispatcher) { measure { block() } }
   }
 }
 
@@ -207,19 +484,27 @@ fun <T : Any> Flow<Query>.mapToOneOrNull(
  * for each row, every time this observable emits a new query. On tables whose queries update
  * frequently or very large result sets this can result in the creation of many objects.
  *
+ * A query which is still being mapped when a newer query is received is abandoned. The cursor
+ * loop periodically checks for cancellation, closes the cursor, and only the result of the newest
+ * query is emitted.
+ *
  * This operator ignores `null` cursors returned from [Query.run].
  *
  * @param mapper Maps the current [Cursor] row to `T`. May not return null.
  */
+@OptIn(ExperimentalCoroutinesApi::class) // Relies on transformLatest.
 @CheckResult
 fun <T> Flow<Query>.mapToList(
   dispatcher: CoroutineDispatcher = Dispatchers.IO,
   mapper: (Cursor) -> T
-): Flow<List<T>> = transform { query ->
+): Flow<List<T>> = transformLatest { query ->
   val list = withContext(dispatcher) {
     query.run()?.use { cursor ->
       val items = ArrayList<T>(cursor.count)
       while (cursor.moveToNext()) {
+        if (items.size % CANCELLATION_CHECK_INTERVAL == 0) {
+          ensureActive()
+        }
         items.add(mapper(cursor))
       }
       items
@@ -229,3 +514,447 @@ fun <T> Flow<Query>.mapToList(
     emit(list)
   }
 }
+
+/**
+ * Transforms a query flow to a `List<T>` using `mapper`, executing up to [maxConcurrency] queries
+ * at once.
+ *
+ * Unlike [mapToList], a query which is still being mapped when a newer query is received is not
+ * abandoned. The newer query instead starts alongside it on [dispatcher], so that a slow query
+ * under frequent changes still produces results rather than being restarted indefinitely. Queries
+ * received while [maxConcurrency] are already executing are coalesced into the most recent one.
+ *
+ * Results are emitted as they complete, except that a result from a query received before one
+ * whose result has already been emitted is discarded, as is any query still being mapped at that
+ * point. Emitted lists therefore never go back in time. For queries emitted by [observeQuery]
+ * the order received is their [generation][ObservedQuery.generation].
+ *
+ * This operator ignores `null` cursors returned from [Query.run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null. Invoked from multiple
+ * threads at once.
+ */
+@CheckResult
+fun <T> Flow<Query>.mapToListConcurrent(
+  maxConcurrency: Int = 2,
+  dispatcher: CoroutineDispatcher = Dispatchers.IO,
+  mapper: (Cursor) -> T
+): Flow<List<T>> {
+  require(maxConcurrency > 0) { "maxConcurrency <= 0: $maxConcurrency" }
+  return channelFlow {
+    val permits = Semaphore(maxConcurrency)
+    val emitting = Mutex()
+    val latest = AtomicLong(-1L)
+    var received = 0L
+    this@mapToListConcurrent.buffer(CONFLATED).collect { query ->
+      val generation = received++
+      permits.acquire()
+      launch(dispatcher) {
+        try {
+          val list = query.run()?.use { cursor ->
+            val items = ArrayList<T>(cursor.count)
+            while (cursor.moveToNext()) {
+              if (items.size % CANCELLATION_CHECK_INTERVAL == 0) {
+                ensureActive()
+                if (latest.get() > generation) return@launch // Superseded.
+              }
+              items.add(mapper(cursor))
+            }
+            items
+          }
+          if (list != null) {
+            emitting.withLock {
+              if (generation > latest.get()) {
+                latest.set(generation)
+                send(list)
+              }
+            }
+          }
+        } finally {
+          permits.release()
+        }
+      }
+    }
+  }.buffer(CONFLATED)
+}
+
+/**
+ * Transforms a query flow to a [BoundedList] of `T` using `mapper`, mapping no more rows than
+ * [budget] allows. Use this operator over [mapToList] when a query could unexpectedly return a
+ * result too large to hold in memory.
+ *
+ * When the result exceeds the budget, the [overflow policy][ResultBudget.overflow] either emits
+ * the rows mapped so far as a [truncated][BoundedList.isTruncated] list or fails the flow with a
+ * [ResultTooLargeException][app.cash.copper.ResultTooLargeException]. To process an unbounded
+ * result without holding every row, use [asRows] instead.
+ *
+ * A query which is still being mapped when a newer query is received is abandoned and only the
+ * result of the newest query is emitted.
+ *
+ * This operator ignores `null` cursors returned from [Query.run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+@OptIn(ExperimentalCoroutinesApi::class) // Relies on transformLatest.
+@CheckResult
+fun <T> Flow<Query>.mapToListBounded(
+  budget: ResultBudget,
+  dispatcher: CoroutineDispatcher = Dispatchers.IO,
+  mapper: (Cursor) -> T
+): Flow<BoundedList<T>> = transformLatest { query ->
+  val list = withContext(dispatcher) {
+    query.run()?.use { cursor ->
+      budget.map(cursor) { row ->
+        if (row.position % CANCELLATION_CHECK_INTERVAL == 0) {
+          ensureActive()
+        }
+        mapper(row)
+      }
+    }
+  }
+  if (list != null) {
+    emit(list)
+  }
+}
+
+/**
+ * Transforms a query flow to a `List<T>` using `mapper`, executing the query and mapping its rows
+ * as separate pipeline stages.
+ *
+ * Each query is run on [queryDispatcher] where its cursor is copied into an immutable snapshot and
+ * closed. The snapshot is then mapped on [mapDispatcher] which defaults to the CPU-bound
+ * [Dispatchers.Default]. The next query may execute while the previous result is being mapped.
+ * When multiple snapshots are produced while mapping is in progress, only the newest is mapped.
+ *
+ * This operator ignores `null` cursors returned from [Query.run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+@CheckResult
+fun <T> Flow<Query>.mapToListPipelined(
+  queryDispatcher: CoroutineDispatcher = Dispatchers.IO,
+  mapDispatcher: CoroutineDispatcher = Dispatchers.Default,
+  mapper: (Cursor) -> T
+): Flow<List<T>> {
+  return mapToSnapshot(queryDispatcher)
+    .buffer(CONFLATED)
+    .map { snapshot ->
+      withContext(mapDispatcher) {
+        snapshot.mapRows(mapper)
+      }
+    }
+}
+
+/**
+ * Transforms a query flow to a `List<T>` using `mapper`, mapping large result sets in parallel.
+ *
+ * Each query is run on [queryDispatcher] where its cursor is copied into an immutable snapshot and
+ * closed. The rows of the snapshot are then split into up to [parallelism] contiguous chunks which
+ * are mapped concurrently on [mapDispatcher] and reassembled in their original order. Small
+ * result sets are mapped as a single chunk. When multiple snapshots are produced while mapping is
+ * in progress, only the newest is mapped.
+ *
+ * Use this operator over [mapToList] only for very large result sets with expensive mappers.
+ * [mapper] must be safe to invoke from multiple threads at once.
+ *
+ * This operator ignores `null` cursors returned from [Query.run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+@CheckResult
+fun <T> Flow<Query>.mapToListParallel(
+  parallelism: Int = Runtime.getRuntime().availableProcessors(),
+  queryDispatcher: CoroutineDispatcher = Dispatchers.IO,
+  mapDispatcher: CoroutineDispatcher = Dispatchers.Default,
+  mapper: (Cursor) -> T
+): Flow<List<T>> {
+  require(parallelism > 0) { "parallelism <= 0: $parallelism" }
+  return mapToSnapshot(queryDispatcher).buffer(CONFLATED).map { snapshot ->
+    val count = snapshot.count
+    val maxChunks = (count + PARALLEL_CHUNK_MIN_ROWS - 1) / PARALLEL_CHUNK_MIN_ROWS
+    val chunks = minOf(parallelism, maxChunks).coerceAtLeast(1)
+    val chunkSize = (count + chunks - 1) / chunks
+    coroutineScope {
+      val results = List(chunks) { chunk ->
+        async(mapDispatcher) {
+          val fromIndex = minOf(chunk * chunkSize, count)
+          snapshot.mapRows(fromIndex, minOf(fromIndex + chunkSize, count), mapper)
+        }
+      }
+      val items = ArrayList<T>(count)
+      for (result in results) {
+        items.addAll(result.await())
+      }
+      items
+    }
+  }
+}
+
+/**
+ * The fewest rows worth mapping as a separate chunk in [mapToListParallel]. Dispatching and
+ * reassembling a chunk costs roughly as much as mapping this many rows with a cheap mapper, so
+ * smaller chunks only add overhead.
+ */
+private const val PARALLEL_CHUNK_MIN_ROWS = 256
+
+/**
+ * Transforms a query flow to an immutable [CursorSnapshot] of its result set.
+ *
+ * The query is run and its cursor copied on [dispatcher] before being closed. A snapshot can be
+ * read any number of times, allowing several mappers to share a single execution of the query.
+ * Prefer [mapSnapshot] to also perform that mapping on [dispatcher].
+ *
+ * A query which is still being executed when a newer query is received is cancelled and its
+ * result discarded.
+ *
+ * This operator ignores `null` cursors returned from [Query.run].
+ */
+@OptIn(ExperimentalCoroutinesApi::class) // Relies on transformLatest.
+@CheckResult
+fun Flow<Query>.mapToSnapshot(
+  dispatcher: CoroutineDispatcher = Dispatchers.IO
+): Flow<CursorSnapshot> = transformLatest { query ->
+  val snapshot = withContext(dispatcher) {
+    query.run()?.use { cursor -> CursorSnapshot.copyOf(cursor) }
+  }
+  if (snapshot != null) {
+    emit(snapshot)
+  }
+}
+
+/**
+ * Transforms a query flow to an `R` using [transform] which receives an immutable snapshot of the
+ * result set.
+ *
+ * Use this operator to feed a single execution of the query to several mappers and emit their
+ * results together, instead of attaching multiple operators which each run the query:
+ * ```
+ * contentResolver.observeQuery(uri).mapSnapshot { snapshot ->
+ *   EmployeeScreen(
+ *     employees = snapshot.mapRows(Employee.MAPPER),
+ *     count = snapshot.count,
+ *   )
+ * }
+ * ```
+ *
+ * The query is run, copied, and transformed on [dispatcher]. A query which is still being
+ * executed when a newer query is received is cancelled and its result discarded.
+ *
+ * This operator ignores `null` cursors returned from [Query.run].
+ */
+@OptIn(ExperimentalCoroutinesApi::class) // Relies on transformLatest.
+@CheckResult
+fun <R> Flow<Query>.mapSnapshot(
+  dispatcher: CoroutineDispatcher = Dispatchers.IO,
+  transform: (CursorSnapshot) -> R
+): Flow<R> = transformLatest { query ->
+  val (emit, result) = withContext(dispatcher) {
+    val snapshot = query.run()?.use { cursor -> CursorSnapshot.copyOf(cursor) }
+    if (snapshot == null) {
+      false to null
+    } else {
+      ensureActive()
+      true to transform(snapshot)
+    }
+  }
+  if (emit) {
+    @Suppress("UNCHECKED_CAST") // R may be nullable.
+    emit(result as R)
+  }
+}
+
+/**
+ * Transforms a query flow to a `List<T>` whose items are mapped using `mapper` only when first
+ * accessed.
+ *
+ * The cursor is copied into an immutable snapshot on [dispatcher] and closed. Items are then
+ * mapped on the thread which calls [List.get], each at most once. Use this operator over
+ * [mapToList] when only a small subset of a large result will be read, such as the visible
+ * rows of a screen.
+ *
+ * A query which is still being executed when a newer query is received is cancelled and its
+ * result discarded.
+ *
+ * This operator ignores `null` cursors returned from [Query.run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+@CheckResult
+fun <T> Flow<Query>.mapToLazyList(
+  dispatcher: CoroutineDispatcher = Dispatchers.IO,
+  mapper: (Cursor) -> T
+): Flow<List<T>> = mapToSnapshot(dispatcher).map { snapshot -> snapshot.mapLazily(mapper) }
+
+/**
+ * Transforms a query flow to a `List<T>` using `mapper`, refreshing only the changed rows when
+ * possible.
+ *
+ * When a change notification names only row URIs of the form `<uri>/<id>`, where `<id>` is the
+ * value of [idColumn], just those rows are queried on [dispatcher] and patched into a copy of the
+ * previous list: updated rows are replaced in place, new rows are appended, and rows which no
+ * longer match are removed. Any other change, such as one for the table URI, runs the full query.
+ * Providers must therefore notify with row URIs for this operator to avoid full requeries.
+ *
+ * Since each list is derived from the previous one, queries are processed in order and are never
+ * abandoned in favor of a newer query. Appended rows are not sorted according to the query's sort
+ * order.
+ *
+ * This operator ignores `null` cursors returned from [Query.run].
+ *
+ * @param idColumn A unique integer column identifying each row, such as `_id`.
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+@CheckResult
+fun <T : Any> Flow<Query>.mapToListIncremental(
+  idColumn: String,
+  dispatcher: CoroutineDispatcher = Dispatchers.IO,
+  mapper: (Cursor) -> T
+): Flow<List<T>> = flow {
+  val lists = IncrementalListMapper(idColumn, mapper)
+  collect { query ->
+    val list = withContext(dispatcher) { lists.map(query) }
+    if (list != null) {
+      emit(list)
+    }
+  }
+}
+
+/**
+ * Transforms a query flow to a [LongKeyMap] of `T` using `mapper`, keyed by the integer value of
+ * [keyColumn].
+ *
+ * The map is built on [dispatcher] during the same pass over the cursor which maps each row. Its
+ * keys are stored as primitives so lookups do not allocate. When multiple rows share a key, the
+ * value of the last row is retained. It is an error for [keyColumn] to be null in any row.
+ *
+ * A query which is still being mapped when a newer query is received is abandoned and only the
+ * result of the newest query is emitted.
+ *
+ * This operator ignores `null` cursors returned from [Query.run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+@OptIn(ExperimentalCoroutinesApi::class) // Relies on transformLatest.
+@CheckResult
+fun <T : Any> Flow<Query>.mapToMap(
+  keyColumn: String,
+  dispatcher: CoroutineDispatcher = Dispatchers.IO,
+  mapper: (Cursor) -> T
+): Flow<LongKeyMap<T>> = transformLatest { query ->
+  val map = withContext(dispatcher) {
+    query.run()?.use { cursor ->
+      val keyIndex = cursor.getColumnIndexOrThrow(keyColumn)
+      val builder = LongKeyMap.Builder<T>(cursor.count)
+      var rows = 0
+      while (cursor.moveToNext()) {
+        if (rows++ % CANCELLATION_CHECK_INTERVAL == 0) {
+          ensureActive()
+        }
+        check(!cursor.isNull(keyIndex)) { "Cursor returned null key in column '$keyColumn'" }
+        builder.put(cursor.getLong(keyIndex), mapper(cursor))
+      }
+      builder.build()
+    }
+  }
+  if (map != null) {
+    emit(map)
+  }
+}
+
+/**
+ * Transforms a query flow to the number of rows in its result set.
+ *
+ * No rows are mapped and a count is only emitted when it differs from the previous count.
+ *
+ * This operator ignores `null` cursors returned from [Query.run].
+ */
+@OptIn(ExperimentalCoroutinesApi::class) // Relies on transformLatest.
+@CheckResult
+fun Flow<Query>.mapToCount(
+  dispatcher: CoroutineDispatcher = Dispatchers.IO
+): Flow<Int> = transformLatest { query ->
+  val count = withContext(dispatcher) {
+    query.run()?.use { cursor -> cursor.count }
+  }
+  if (count != null) {
+    emit(count)
+  }
+}.distinctUntilChanged()
+
+/**
+ * Transforms a query flow to a single value by accumulating each row of its result set into
+ * [initial] using [operation].
+ *
+ * The fold runs on [dispatcher] inside the loop over the cursor so that no rows are materialized.
+ * A value is only emitted when it differs from the previous value. Use [foldRowsToLong] for
+ * numeric aggregates to avoid boxing the accumulator.
+ *
+ * This operator ignores `null` cursors returned from [Query.run].
+ */
+@OptIn(ExperimentalCoroutinesApi::class) // Relies on transformLatest.
+@CheckResult
+fun <R> Flow<Query>.foldRows(
+  initial: R,
+  dispatcher: CoroutineDispatcher = Dispatchers.IO,
+  operation: (accumulator: R, cursor: Cursor) -> R
+): Flow<R> = transformLatest { query ->
+  val (emit, result) = withContext(dispatcher) {
+    val cursor = query.run()
+    if (cursor == null) {
+      false to initial
+    } else {
+      cursor.use {
+        var accumulator = initial
+        var rows = 0
+        while (cursor.moveToNext()) {
+          if (rows++ % CANCELLATION_CHECK_INTERVAL == 0) {
+            ensureActive()
+          }
+          accumulator = operation(accumulator, cursor)
+        }
+        true to accumulator
+      }
+    }
+  }
+  if (emit) {
+    emit(result)
+  }
+}.distinctUntilChanged()
+
+/**
+ * Transforms a query flow to a single `long` by accumulating each row of its result set into
+ * [initial] using [operation].
+ *
+ * The fold runs on [dispatcher] inside the loop over the cursor with a primitive accumulator so
+ * that neither rows nor intermediate values are allocated. A value is only emitted when it
+ * differs from the previous value.
+ *
+ * This operator ignores `null` cursors returned from [Query.run].
+ */
+@OptIn(ExperimentalCoroutinesApi::class) // Relies on transformLatest.
+@CheckResult
+fun Flow<Query>.foldRowsToLong(
+  initial: Long,
+  dispatcher: CoroutineDispatcher = Dispatchers.IO,
+  operation: LongRowFolder
+): Flow<Long> = transformLatest { query ->
+  val result = withContext(dispatcher) {
+    query.run()?.use { cursor ->
+      var accumulator = initial
+      var rows = 0
+      while (cursor.moveToNext()) {
+        if (rows++ % CANCELLATION_CHECK_INTERVAL == 0) {
+          ensureActive()
+        }
+        accumulator = operation.fold(accumulator, cursor)
+      }
+      accumulator
+    }
+  }
+  if (result != null) {
+    emit(result)
+  }
+}.distinctUntilChanged()
+
+/** Number of rows mapped between checks for whether a newer query has superseded the current. */
+internal const val CANCELLATION_CHECK_INTERVAL = 64
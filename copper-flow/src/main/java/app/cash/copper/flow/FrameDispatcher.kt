@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper.flow
+
+import app.cash.copper.FrameExecutor
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * A dispatcher which resumes coroutines on the main thread at the start of the next frame.
+ * Results delivered to collectors running on it between two frames are handled together, before
+ * that frame's layout, so that several queries invalidated by one write cause a single layout
+ * pass rather than one for each query:
+ * ```
+ * scope.launch(FrameDispatcher) {
+ *   employees.collect { render(it) }
+ * }
+ * ```
+ *
+ * Resuming on a frame adds up to one frame of latency, so only use this dispatcher for collectors
+ * which update the UI.
+ *
+ * Every resumption of a coroutine on this dispatcher waits for the next frame, not only the
+ * delivery of results. A coroutine which suspends several times, such as by switching to another
+ * dispatcher with `withContext` and back, waits for a frame each time. Move such work upstream of
+ * the collector, for example with `flowOn`, so that only the delivery happens on this dispatcher.
+ */
+object FrameDispatcher : CoroutineDispatcher() {
+  override fun dispatch(context: CoroutineContext, block: Runnable) {
+    FrameExecutor.execute(block)
+  }
+
+  override fun toString() = "FrameDispatcher"
+}
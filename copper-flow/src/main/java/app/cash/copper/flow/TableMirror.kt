@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper.flow
+
+import android.content.ContentResolver
+import android.database.Cursor
+import androidx.annotation.CheckResult
+import app.cash.copper.IndexedSnapshot
+import app.cash.copper.QueryKey
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.SharingStarted
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.mapNotNull
+import kotlinx.coroutines.flow.shareIn
+import kotlinx.coroutines.flow.transformLatest
+import kotlinx.coroutines.withContext
+
+/**
+ * An in-memory copy of the rows of a table which serves lookups of individual rows by key.
+ *
+ * Use a mirror instead of observing a query of each row, such as one per visible list item, when
+ * many rows of the same table are observed at once. Rather than every observer running its own
+ * query on each change, the table described by [key] is queried once on [dispatcher] and indexed
+ * by the integer value of [keyColumn]. Each change notification refreshes the copy once, and only
+ * the observers whose row differs from the previous copy receive a new value.
+ *
+ * The table is observed in [scope] while at least one flow returned from [mapToOne] or
+ * [mapToOneOrNull] is being collected. Every row is held in memory, so only mirror tables which
+ * are small enough to do so.
+ */
+class TableMirror(
+  contentResolver: ContentResolver,
+  scope: CoroutineScope,
+  key: QueryKey,
+  private val keyColumn: String,
+  private val dispatcher: CoroutineDispatcher = Dispatchers.IO
+) {
+  @OptIn(ExperimentalCoroutinesApi::class) // Relies on transformLatest.
+  private val snapshots: Flow<IndexedSnapshot> = contentResolver.observeQuery(key)
+    .transformLatest { query ->
+      val snapshot = withContext(dispatcher) {
+        query.run()?.use { cursor -> IndexedSnapshot.copyOf(cursor, keyColumn) }
+      }
+      if (snapshot != null) {
+        emit(snapshot)
+      }
+    }
+    // Drop the copy once unobserved so that a stale table is never replayed to a new observer.
+    .shareIn(scope, SharingStarted.WhileSubscribed(replayExpirationMillis = 0), replay = 1)
+
+  /**
+   * Observe the row whose [keyColumn] is [key], mapped to a `T` using [mapper]. When there is no
+   * such row, [default] is emitted, or nothing is emitted if [default] is null.
+   *
+   * A value is only emitted when the values of the row have changed. [mapper] is invoked on the
+   * collecting thread, reading from the in-memory copy of the table.
+   */
+  @CheckResult
+  fun <T : Any> mapToOne(key: Long, default: T? = null, mapper: (Cursor) -> T): Flow<T> {
+    return rowChanges(key).mapNotNull { snapshot -> snapshot.mapRow(key, mapper) ?: default }
+  }
+
+  /**
+   * Observe the row whose [keyColumn] is [key], mapped to a `T` using [mapper], or null when
+   * there is no such row.
+   *
+   * A value is only emitted when the values of the row have changed or it is added or removed.
+   * [mapper] is invoked on the collecting thread, reading from the in-memory copy of the table.
+   */
+  @CheckResult
+  fun <T : Any> mapToOneOrNull(key: Long, mapper: (Cursor) -> T): Flow<T?> {
+    return rowChanges(key).map { snapshot -> snapshot.mapRow(key, mapper) }
+  }
+
+  private fun rowChanges(key: Long): Flow<IndexedSnapshot> {
+    return snapshots.distinctUntilChanged { old, new -> old.rowEquals(key, new) }
+  }
+}
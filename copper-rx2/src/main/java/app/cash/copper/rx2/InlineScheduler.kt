@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@file:JvmName("InlineSchedulers")
+
+package app.cash.copper.rx2
+
+import app.cash.copper.InlineCostGate
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
+import io.reactivex.disposables.Disposables
+import java.util.concurrent.TimeUnit
+
+/**
+ * Returns a [Scheduler] which runs work inline on the calling thread instead of on this scheduler
+ * when the recent cost of that work is below [thresholdMicros], unless the calling thread is the
+ * main thread. Work is measured wherever it runs, so expensive work moves back to this scheduler.
+ *
+ * Backs the `inlineThresholdMicros` of [observeQuery]. The cost is tracked across all work on the
+ * returned scheduler, so create one for each subscriber. Inline work does not wait for work
+ * already scheduled on the same worker, so it may only be used where, as with `observeOn`, a
+ * worker is never handed new work while earlier work is pending.
+ */
+internal fun Scheduler.inlineWhenCheap(thresholdMicros: Long): Scheduler {
+  return InlineWhenCheapScheduler(this, InlineCostGate(thresholdMicros))
+}
+
+private class InlineWhenCheapScheduler(
+  private val delegate: Scheduler,
+  private val gate: InlineCostGate
+) : Scheduler() {
+  override fun createWorker(): Worker = InlineWhenCheapWorker(delegate.createWorker(), gate)
+
+  private class InlineWhenCheapWorker(
+    private val worker: Worker,
+    private val gate: InlineCostGate
+  ) : Worker() {
+    override fun schedule(run: Runnable, delay: Long, unit: TimeUnit): Disposable {
+      if (delay <= 0L && !worker.isDisposed && gate.shouldRunInline()) {
+        gate.measure { run.run() }
+        return Disposables.disposed()
+      }
+      return worker.schedule({ gate.measure { run.run() } }, delay, unit)
+    }
+
+    override fun dispose() = worker.dispose()
+
+    override fun isDisposed() = worker.isDisposed
+  }
+}
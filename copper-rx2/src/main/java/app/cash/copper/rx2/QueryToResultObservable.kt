@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper.rx2
+
+import android.database.Cursor
+import app.cash.copper.Query
+import io.reactivex.Observable
+import io.reactivex.ObservableSource
+import io.reactivex.Observer
+import io.reactivex.exceptions.Exceptions
+import io.reactivex.observers.DisposableObserver
+import io.reactivex.plugins.RxJavaPlugins
+
+/** Emits the result of [reader] for the cursor of each query. The cursor is closed afterwards. */
+internal class QueryToResultObservable<R : Any>(
+  private val upstream: ObservableSource<out Query>,
+  private val reader: (Cursor) -> R
+) : Observable<R>() {
+  override fun subscribeActual(observer: Observer<in R>) {
+    upstream.subscribe(ReadingObserver(observer, reader))
+  }
+
+  private class ReadingObserver<R : Any>(
+    private val downstream: Observer<in R>,
+    private val reader: (Cursor) -> R
+  ) : DisposableObserver<Query>() {
+    override fun onStart() {
+      downstream.onSubscribe(this)
+    }
+
+    override fun onNext(query: Query) {
+      try {
+        val cursor = query.run()
+        if (cursor == null || isDisposed) {
+          return
+        }
+        val result = cursor.use(reader)
+        if (!isDisposed) {
+          downstream.onNext(result)
+        }
+      } catch (e: Throwable) {
+        Exceptions.throwIfFatal(e)
+        onError(e)
+      }
+    }
+
+    override fun onComplete() {
+      if (!isDisposed) {
+        downstream.onComplete()
+      }
+    }
+
+    override fun onError(e: Throwable) {
+      if (isDisposed) {
+        RxJavaPlugins.onError(e)
+      } else {
+        downstream.onError(e)
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper.rx2
+
+import android.content.ContentResolver
+import android.database.Cursor
+import androidx.annotation.CheckResult
+import androidx.annotation.RequiresApi
+import app.cash.copper.IndexedSnapshot
+import app.cash.copper.QueryKey
+import io.reactivex.Maybe
+import io.reactivex.Observable
+import io.reactivex.Scheduler
+import io.reactivex.schedulers.Schedulers
+import java.util.Optional
+
+/**
+ * An in-memory copy of the rows of a table which serves lookups of individual rows by key.
+ *
+ * Use a mirror instead of observing a query of each row, such as one per visible list item, when
+ * many rows of the same table are observed at once. Rather than every subscriber running its own
+ * query on each change, the table described by [key] is queried once on [scheduler] and indexed
+ * by the integer value of [keyColumn]. Each change notification refreshes the copy once, and only
+ * the subscribers whose row differs from the previous copy receive a new value.
+ *
+ * The table is observed while at least one observable returned from [mapToOne] or [mapToOptional]
+ * is subscribed. Every row is held in memory, so only mirror tables which are small enough to do
+ * so.
+ */
+class TableMirror @JvmOverloads constructor(
+  contentResolver: ContentResolver,
+  key: QueryKey,
+  private val keyColumn: String,
+  scheduler: Scheduler = Schedulers.io()
+) {
+  private val snapshots: Observable<IndexedSnapshot> = contentResolver.observeQuery(key, scheduler)
+    .flatMapMaybe { query ->
+      val snapshot = query.run()?.use { cursor -> IndexedSnapshot.copyOf(cursor, keyColumn) }
+      if (snapshot != null) Maybe.just(snapshot) else Maybe.empty()
+    }
+    .replay(1)
+    .refCount()
+
+  /**
+   * Observe the row whose [keyColumn] is [key], mapped to a `T` using [mapper]. When there is no
+   * such row, [default] is emitted, or nothing is emitted if [default] is null.
+   *
+   * A value is only emitted when the values of the row have changed. [mapper] reads from the
+   * in-memory copy of the table rather than running a query.
+   */
+  @CheckResult
+  @JvmOverloads
+  fun <T : Any> mapToOne(key: Long, default: T? = null, mapper: (Cursor) -> T): Observable<T> {
+    return rowChanges(key).flatMapMaybe { snapshot ->
+      val item = snapshot.mapRow(key, mapper) ?: default
+      if (item != null) Maybe.just(item) else Maybe.empty()
+    }
+  }
+
+  /**
+   * Observe the row whose [keyColumn] is [key], mapped to an [Optional] of `T` using [mapper]
+   * which is empty when there is no such row.
+   *
+   * A value is only emitted when the values of the row have changed or it is added or removed.
+   * [mapper] reads from the in-memory copy of the table rather than running a query.
+   */
+  @RequiresApi(24)
+  @CheckResult
+  fun <T : Any> mapToOptional(key: Long, mapper: (Cursor) -> T): Observable<Optional<T>> {
+    return rowChanges(key).map { snapshot -> Optional.ofNullable(snapshot.mapRow(key, mapper)) }
+  }
+
+  private fun rowChanges(key: Long): Observable<IndexedSnapshot> {
+    return snapshots.distinctUntilChanged { old, new -> old.rowEquals(key, new) }
+  }
+}
@@ -17,16 +17,33 @@ package app.cash.copper.rx3;
 
 import android.database.Cursor;
 import androidx.test.filters.SdkSuppress;
+import app.cash.copper.BoundedList;
+import app.cash.copper.LongKeyMap;
+import app.cash.copper.Query;
+import app.cash.copper.ResultBudget;
+import app.cash.copper.ResultTooLargeException;
 import app.cash.copper.testing.Employee;
 import app.cash.copper.testing.NullQuery;
+import io.reactivex.rxjava3.observers.TestObserver;
+import io.reactivex.rxjava3.schedulers.TestScheduler;
+import io.reactivex.rxjava3.subjects.PublishSubject;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import kotlin.jvm.functions.Function1;
 import org.junit.Test;
 
 import static app.cash.copper.testing.Employee.queryOf;
+import static com.google.common.truth.Truth.assertThat;
 import static io.reactivex.rxjava3.core.Observable.just;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assume.assumeTrue;
 
 public final class OperatorTest {
   @Test public void mapToOne() {
@@ -178,4 +195,362 @@ public final class OperatorTest {
         .test()
         .assertValue(Optional.empty());
   }
+
+  @Test public void mapToLazyListMapsOnAccess() {
+    AtomicInteger mapped = new AtomicInteger();
+    List<Employee> employees =
+        just(queryOf("alice", "Alice Allison", "bob", "Bob Bobberson", "eve", "Eve Evenson"))
+            .to(o -> RxContentResolver.mapToLazyList(o, cursor -> {
+              mapped.incrementAndGet();
+              return Employee.MAPPER.invoke(cursor);
+            }))
+            .blockingFirst();
+    assertThat(mapped.get()).isEqualTo(0);
+    assertThat(employees).hasSize(3);
+
+    assertThat(employees.get(1)).isEqualTo(new Employee("bob", "Bob Bobberson"));
+    assertThat(employees.get(1)).isEqualTo(new Employee("bob", "Bob Bobberson"));
+    assertThat(mapped.get()).isEqualTo(1);
+  }
+
+  @Test public void mapToLazyListIgnoresNullCursor() {
+    just(NullQuery.INSTANCE)
+        .to(o -> RxContentResolver.mapToLazyList(o, Employee.MAPPER))
+        .test()
+        .assertNoValues()
+        .assertComplete();
+  }
+
+  @Test public void mapToMap() {
+    LongKeyMap<Employee> employees =
+        just(queryOf("1", "Alice Allison", "2", "Bob Bobberson", "1", "Alice Aliason"))
+            .to(o -> RxContentResolver.mapToMap(o, "username", Employee.MAPPER))
+            .blockingFirst();
+    assertThat(employees.getSize()).isEqualTo(2);
+    assertThat(employees.get(1L)).isEqualTo(new Employee("1", "Alice Aliason"));
+    assertThat(employees.get(2)).isEqualTo(new Employee("2", "Bob Bobberson"));
+    assertThat(employees.get(3L)).isNull();
+    assertThat(employees.keyAt(1)).isEqualTo(2L);
+  }
+
+  @Test public void mapToMapIgnoresNullCursor() {
+    just(NullQuery.INSTANCE)
+        .to(o -> RxContentResolver.mapToMap(o, "username", Employee.MAPPER))
+        .test()
+        .assertNoValues()
+        .assertComplete();
+  }
+
+  @Test public void mapToCountEmitsOnlyChanges() {
+    just(
+        queryOf("alice", "Alice Allison", "bob", "Bob Bobberson"),
+        queryOf("alice", "Alice Allison", "eve", "Eve Evenson"),
+        queryOf("alice", "Alice Allison", "bob", "Bob Bobberson", "eve", "Eve Evenson"))
+        .to(RxContentResolver::mapToCount)
+        .test()
+        .assertValues(2, 3)
+        .assertComplete();
+  }
+
+  @Test public void foldRows() {
+    just(queryOf("alice", "Alice Allison", "bob", "Bob Bobberson", "eve", "Eve Evenson"))
+        .to(o -> RxContentResolver.foldRows(o, "",
+            (names, cursor) -> names + Employee.MAPPER.invoke(cursor).username.charAt(0)))
+        .test()
+        .assertValue("abe")
+        .assertComplete();
+  }
+
+  @Test public void foldRowsToLongEmitsOnlyChanges() {
+    just(
+        queryOf("1", "Alice Allison", "20", "Bob Bobberson"),
+        queryOf("20", "Bob Bobberson", "1", "Alice Allison"),
+        queryOf("300", "Eve Evenson"))
+        .to(o -> RxContentResolver.foldRowsToLong(o, 0L,
+            (max, cursor) -> Math.max(max, cursor.getLong(0))))
+        .test()
+        .assertValues(20L, 300L)
+        .assertComplete();
+  }
+
+  @Test public void foldRowsToLongIgnoresNullCursor() {
+    just(NullQuery.INSTANCE)
+        .to(o -> RxContentResolver.foldRowsToLong(o, 0L, (sum, cursor) -> sum + cursor.getLong(0)))
+        .test()
+        .assertNoValues()
+        .assertComplete();
+  }
+
+  @Test public void mapToListPipelined() {
+    just(queryOf("alice", "Alice Allison", "bob", "Bob Bobberson", "eve", "Eve Evenson"))
+        .to(o -> RxContentResolver.mapToListPipelined(o, Employee.MAPPER))
+        .test()
+        .awaitDone(5, SECONDS)
+        .assertValue(asList(
+            new Employee("alice", "Alice Allison"), //
+            new Employee("bob", "Bob Bobberson"), //
+            new Employee("eve", "Eve Evenson")))
+        .assertComplete();
+  }
+
+  @Test public void mapToListParallelPreservesOrder() {
+    String[] values = new String[4_000]; // 2,000 username and name pairs.
+    for (int i = 0; i < values.length; i++) {
+      values[i] = "employee" + i / 2;
+    }
+    List<Employee> employees = just(queryOf(values))
+        .to(o -> RxContentResolver.mapToListParallel(o, 4, Employee.MAPPER))
+        .blockingFirst();
+    assertThat(employees).hasSize(2_000);
+    for (int i = 0; i < employees.size(); i++) {
+      assertThat(employees.get(i)).isEqualTo(new Employee("employee" + i, "employee" + i));
+    }
+  }
+
+  @Test public void mapToListParallelEmptyWhenNoRows() {
+    just(queryOf())
+        .to(o -> RxContentResolver.mapToListParallel(o, Employee.MAPPER))
+        .test()
+        .awaitDone(5, SECONDS)
+        .assertValue(emptyList())
+        .assertComplete();
+  }
+
+  @Test public void mapToListParallelSpeedsUpExpensiveMappers() {
+    int cores = Runtime.getRuntime().availableProcessors();
+    assumeTrue("Requires more than one core", cores > 1);
+    String[] values = new String[8_192]; // 4,096 username and name pairs.
+    for (int i = 0; i < values.length; i++) {
+      values[i] = "employee" + i / 2;
+    }
+    Function1<Cursor, Employee> mapper = cursor -> {
+      // Stand in for an expensive mapper by spinning for 20µs per row.
+      long deadline = System.nanoTime() + 20_000;
+      while (System.nanoTime() < deadline) {
+      }
+      return Employee.MAPPER.invoke(cursor);
+    };
+
+    long oneChunk = bestOfThreeNanos(values, 1, mapper);
+    long chunks = bestOfThreeNanos(values, cores, mapper);
+    assertThat(chunks).isLessThan(oneChunk * 3 / 4);
+  }
+
+  private static long bestOfThreeNanos(
+      String[] values, int parallelism, Function1<Cursor, Employee> mapper) {
+    long best = Long.MAX_VALUE;
+    for (int run = 0; run < 3; run++) {
+      long start = System.nanoTime();
+      just(queryOf(values))
+          .to(o -> RxContentResolver.mapToListParallel(o, parallelism, mapper))
+          .blockingFirst();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+
+  @Test public void mapSnapshotRunsQueryOnce() {
+    AtomicInteger runs = new AtomicInteger();
+    Query employees = queryOf("alice", "Alice Allison", "bob", "Bob Bobberson");
+    Query query = () -> {
+      runs.incrementAndGet();
+      return employees.run();
+    };
+    just(query)
+        .to(o -> RxContentResolver.mapSnapshot(o,
+            snapshot -> snapshot.mapRows(Employee.MAPPER).size() + snapshot.getCount()))
+        .test()
+        .assertValue(4)
+        .assertComplete();
+    assertThat(runs.get()).isEqualTo(1);
+  }
+
+  @Test public void mapToSnapshotIgnoresNullCursor() {
+    just(NullQuery.INSTANCE)
+        .to(RxContentResolver::mapToSnapshot)
+        .test()
+        .assertNoValues()
+        .assertComplete();
+  }
+
+  @Test public void pauseWhileInactiveEmitsLatestOnResume() {
+    PublishSubject<Boolean> active = PublishSubject.create();
+    PublishSubject<Query> queries = PublishSubject.create();
+    Query first = queryOf("alice", "Alice Allison");
+    Query second = queryOf("bob", "Bob Bobberson");
+    Query third = queryOf("eve", "Eve Evenson");
+    TestObserver<Query> o = queries
+        .to(q -> RxContentResolver.pauseWhileInactive(q, active))
+        .test();
+
+    queries.onNext(first);
+    o.assertNoValues();
+    active.onNext(true);
+    o.assertValues(first);
+
+    queries.onNext(second);
+    o.assertValues(first, second);
+
+    active.onNext(false);
+    queries.onNext(first);
+    queries.onNext(third);
+    o.assertValues(first, second);
+    active.onNext(true);
+    o.assertValues(first, second, third);
+  }
+
+  @Test public void mapToListIncrementalRunsFullQueryWithoutChange() {
+    just(
+        queryOf("1", "Alice Allison", "2", "Bob Bobberson"),
+        queryOf("1", "Alice Allison", "3", "Eve Evenson"))
+        .to(o -> RxContentResolver.mapToListIncremental(o, "username", Employee.MAPPER))
+        .test()
+        .assertValues(
+            asList(new Employee("1", "Alice Allison"), new Employee("2", "Bob Bobberson")),
+            asList(new Employee("1", "Alice Allison"), new Employee("3", "Eve Evenson")))
+        .assertComplete();
+  }
+
+  @Test public void mapToListIncrementalIgnoresNullCursor() {
+    just(NullQuery.INSTANCE)
+        .to(o -> RxContentResolver.mapToListIncremental(o, "username", Employee.MAPPER))
+        .test()
+        .assertNoValues()
+        .assertComplete();
+  }
+
+  @Test public void mapToListBoundedTruncates() {
+    BoundedList<Employee> employees =
+        just(queryOf("alice", "Alice Allison", "bob", "Bob Bobberson", "eve", "Eve Evenson"))
+            .to(o -> RxContentResolver.mapToListBounded(o, new ResultBudget(2), Employee.MAPPER))
+            .blockingFirst();
+    assertThat(employees).containsExactly(
+        new Employee("alice", "Alice Allison"),
+        new Employee("bob", "Bob Bobberson"));
+    assertThat(employees.isTruncated()).isTrue();
+  }
+
+  @Test public void boundedListEqualityIgnoresTruncation() {
+    List<Employee> items = singletonList(new Employee("alice", "Alice Allison"));
+    BoundedList<Employee> truncated = new BoundedList<>(items, true);
+    assertThat(truncated).isEqualTo(items);
+    assertThat(items).isEqualTo(truncated);
+    assertThat(truncated).isEqualTo(new BoundedList<>(items, false));
+    assertThat(truncated.hashCode()).isEqualTo(items.hashCode());
+    assertThat(truncated).isNotEqualTo(emptyList());
+  }
+
+  @Test public void mapToListBoundedThrowsOnOverflow() {
+    ResultBudget budget = new ResultBudget(Integer.MAX_VALUE, 20, ResultBudget.Overflow.ERROR);
+    just(queryOf("alice", "Alice Allison", "bob", "Bob Bobberson"))
+        .to(o -> RxContentResolver.mapToListBounded(o, budget, Employee.MAPPER))
+        .test()
+        .assertError(ResultTooLargeException.class)
+        .assertErrorMessage("Cursor returned more than 20 bytes");
+  }
+
+  @Test public void rateLimitByCostEmitsEachQuery() {
+    just(queryOf("alice", "Alice Allison"), queryOf("bob", "Bob Bobberson"))
+        .to(o -> RxContentResolver.rateLimitByCost(o, 0.5))
+        .to(o -> RxContentResolver.mapToOne(o, Employee.MAPPER))
+        .test()
+        .awaitDone(5, SECONDS)
+        .assertValues(new Employee("alice", "Alice Allison"), new Employee("bob", "Bob Bobberson"))
+        .assertComplete();
+  }
+
+  @Test public void rateLimitByCostDelaysByMeasuredCost() {
+    TestScheduler scheduler = new TestScheduler();
+    PublishSubject<Query> queries = PublishSubject.create();
+    TestObserver<Query> o = rateLimitAfterCostlyQuery(queries, scheduler);
+
+    // At a duty cycle of 0.5 the next query may only start 200ms after the first.
+    queries.onNext(queryOf("bob", "Bob Bobberson"));
+    scheduler.advanceTimeBy(99, MILLISECONDS);
+    o.assertValueCount(1);
+    scheduler.advanceTimeBy(1, MILLISECONDS);
+    o.assertValueCount(2);
+    assertThat(employee(o.values().get(1))).isEqualTo(new Employee("bob", "Bob Bobberson"));
+  }
+
+  @Test public void rateLimitByCostCollapsesBurst() {
+    TestScheduler scheduler = new TestScheduler();
+    PublishSubject<Query> queries = PublishSubject.create();
+    TestObserver<Query> o = rateLimitAfterCostlyQuery(queries, scheduler);
+
+    queries.onNext(queryOf("bob", "Bob Bobberson"));
+    scheduler.advanceTimeBy(50, MILLISECONDS);
+    queries.onNext(queryOf("eve", "Eve Evenson"));
+    scheduler.advanceTimeBy(25, MILLISECONDS);
+    queries.onNext(queryOf("fred", "Fred Frederson"));
+    scheduler.advanceTimeBy(24, MILLISECONDS);
+    o.assertValueCount(1);
+    scheduler.advanceTimeBy(1, MILLISECONDS);
+    o.assertValueCount(2);
+    assertThat(employee(o.values().get(1))).isEqualTo(new Employee("fred", "Fred Frederson"));
+    scheduler.advanceTimeBy(1, SECONDS);
+    o.assertValueCount(2);
+  }
+
+  @Test public void rateLimitByCostStopsDelayingOnceChangesStop() {
+    TestScheduler scheduler = new TestScheduler();
+    PublishSubject<Query> queries = PublishSubject.create();
+    TestObserver<Query> o = rateLimitAfterCostlyQuery(queries, scheduler);
+
+    scheduler.advanceTimeBy(1, SECONDS);
+    queries.onNext(queryOf("bob", "Bob Bobberson"));
+    o.assertValueCount(2);
+    assertThat(employee(o.values().get(1))).isEqualTo(new Employee("bob", "Bob Bobberson"));
+  }
+
+  /**
+   * Rate limits {@code queries} on {@code scheduler}, and runs a first query for them which takes
+   * 100ms to run and map.
+   */
+  private static TestObserver<Query> rateLimitAfterCostlyQuery(
+      PublishSubject<Query> queries, TestScheduler scheduler) {
+    TestObserver<Query> o = queries
+        .to(q -> RxContentResolver.rateLimitByCost(q, 0.5, scheduler))
+        .test();
+    queries.onNext(queryOf("alice", "Alice Allison"));
+    o.assertValueCount(1);
+    Cursor cursor = requireNonNull(o.values().get(0).run());
+    scheduler.advanceTimeBy(100, MILLISECONDS);
+    cursor.close();
+    return o;
+  }
+
+  private static Employee employee(Query query) {
+    try (Cursor cursor = requireNonNull(query.run())) {
+      assertThat(cursor.moveToNext()).isTrue();
+      return Employee.MAPPER.invoke(cursor);
+    }
+  }
+
+  @Test public void mapToListConcurrentDiscardsOlderResult() {
+    CountDownLatch newerEmitted = new CountDownLatch(1);
+    Query slow = () -> {
+      try {
+        newerEmitted.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      return queryOf("stale", "Stale Staleson").run();
+    };
+    PublishSubject<Query> queries = PublishSubject.create();
+    TestObserver<List<Employee>> o = queries
+        .to(q -> RxContentResolver.mapToListConcurrent(q, 2, Employee.MAPPER))
+        .test();
+
+    queries.onNext(slow);
+    queries.onNext(queryOf("alice", "Alice Allison"));
+    o.awaitCount(1);
+    o.assertValues(asList(new Employee("alice", "Alice Allison")));
+
+    newerEmitted.countDown();
+    queries.onComplete();
+    o.awaitDone(5, SECONDS)
+        .assertValues(asList(new Employee("alice", "Alice Allison")))
+        .assertComplete();
+  }
 }
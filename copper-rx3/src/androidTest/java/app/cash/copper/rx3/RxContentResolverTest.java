@@ -16,16 +16,43 @@
 package app.cash.copper.rx3;
 
 import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.test.ProviderTestCase2;
+import app.cash.copper.Batches;
+import app.cash.copper.LookupBatcher;
+import app.cash.copper.ObservedQuery;
 import app.cash.copper.Query;
+import app.cash.copper.QueryKey;
+import app.cash.copper.QueryParameters;
 import app.cash.copper.testing.CursorAssert;
 import app.cash.copper.testing.TestContentProvider;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.ObservableSource;
 import io.reactivex.rxjava3.observers.TestObserver;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.reactivex.rxjava3.subjects.BehaviorSubject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import kotlin.Unit;
+import kotlin.jvm.functions.Function1;
 
 import static app.cash.copper.testing.TestContentProvider.AUTHORITY;
+import static app.cash.copper.testing.TestContentProvider.KEY;
 import static app.cash.copper.testing.TestContentProvider.TABLE;
+import static app.cash.copper.testing.TestContentProvider.VALUE;
 import static app.cash.copper.testing.TestContentProvider.testValues;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public final class RxContentResolverTest extends ProviderTestCase2<TestContentProvider> {
   private ContentResolver contentResolver;
@@ -94,4 +121,509 @@ public final class RxContentResolverTest extends ProviderTestCase2<TestContentPr
     Query query = o.awaitCount(1).assertValueCount(1).values().remove(0);
     return new CursorAssert(requireNonNull(query.run()));
   }
+
+  private static <T> T last(List<T> list) {
+    return list.get(list.size() - 1);
+  }
+
+  public void testSharedQueriesExecuteOnce() {
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+
+    AtomicInteger mapped = new AtomicInteger();
+    Function1<Observable<Query>, ObservableSource<List<String>>> operator =
+        queries -> RxContentResolver.mapToList(queries, cursor -> {
+          mapped.incrementAndGet();
+          return cursor.getString(0);
+        });
+    SharedQueries sharedQueries = new SharedQueries(contentResolver);
+    TestObserver<List<String>> first = sharedQueries.observe(new QueryKey(TABLE), operator).test();
+    first.awaitCount(1).assertValue(singletonList("key1"));
+
+    TestObserver<List<String>> second = sharedQueries.observe(new QueryKey(TABLE), operator).test();
+    second.assertValue(singletonList("key1"));
+    assertEquals(1, mapped.get());
+
+    first.dispose();
+    second.dispose();
+  }
+
+  public void testChangeFilterSkipsRejectedUris() {
+    Uri otherTable = AUTHORITY.buildUpon().appendPath("other_table").build();
+    TestObserver<Query> o =
+        RxContentResolver.observeQuery(contentResolver, AUTHORITY, null, null, null, null, true,
+            Schedulers.io(), uri -> uri.equals(TABLE))
+            .test();
+    assertNull(((ObservedQuery) o.awaitCount(1).values().remove(0)).getChange());
+
+    contentResolver.insert(otherTable, testValues("key1", "val1"));
+    contentResolver.insert(TABLE, testValues("key2", "val2"));
+    ObservedQuery query = (ObservedQuery) o.awaitCount(1).values().remove(0);
+    assertEquals(singleton(TABLE), requireNonNull(query.getChange()).getUris());
+
+    o.dispose();
+  }
+
+  public void testParameterizedQueryRequeriesForParametersAndChanges() {
+    BehaviorSubject<QueryParameters> parameters = BehaviorSubject.createDefault(
+        new QueryParameters(null, "key = ?", new String[] { "key1" }));
+    TestObserver<Query> o =
+        RxContentResolver.observeQuery(contentResolver, TABLE, parameters).test();
+    assertNull(((ObservedQuery) o.awaitCount(1).values().remove(0)).getChange());
+
+    parameters.onNext(new QueryParameters(null, "key = ?", new String[] { "key2" }));
+    assertNull(((ObservedQuery) o.awaitCount(1).values().remove(0)).getChange());
+
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+    ObservedQuery query = (ObservedQuery) o.awaitCount(1).values().remove(0);
+    assertEquals(singleton(TABLE), requireNonNull(query.getChange()).getUris());
+    new CursorAssert(requireNonNull(query.run())).hasRow("key1", "val1").isExhausted();
+
+    o.dispose();
+  }
+
+  public void testWithDeadlinePassesThroughTimelyResults() {
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+
+    TestObserver<Query> o = RxContentResolver.withDeadline(
+        RxContentResolver.observeQuery(contentResolver, TABLE), 5_000, true, query -> {
+          throw new AssertionError("Timed out");
+        })
+        .test();
+    assertCursor(o).hasRow("key1", "val1").isExhausted();
+
+    contentResolver.insert(TABLE, testValues("key2", "val2"));
+    assertCursor(o).hasRow("key1", "val1").hasRow("key2", "val2").isExhausted();
+
+    o.dispose();
+  }
+
+  public void testWithDeadlineIgnoresTimedOutQuery() {
+    AtomicInteger timedOut = new AtomicInteger();
+
+    TestObserver<Query> o = RxContentResolver.withDeadline(
+        RxContentResolver.observeQuery(contentResolver, TABLE), 100, false,
+        query -> {
+          timedOut.incrementAndGet();
+          return Unit.INSTANCE;
+        })
+        .test();
+    assertCursor(o).isExhausted();
+    assertEquals(0, timedOut.get());
+
+    getProvider().setQueryDelay(500);
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+    assertNull(o.awaitCount(1).assertValueCount(1).values().remove(0).run());
+    assertEquals(1, timedOut.get());
+
+    o.dispose();
+  }
+
+  public void testWithDeadlineReusesLastResultOfTimedOutQuery() {
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+    AtomicInteger timedOut = new AtomicInteger();
+
+    TestObserver<Query> o = RxContentResolver.withDeadline(
+        RxContentResolver.observeQuery(contentResolver, TABLE), 100, true,
+        query -> {
+          timedOut.incrementAndGet();
+          return Unit.INSTANCE;
+        })
+        .test();
+    assertCursor(o).hasRow("key1", "val1").isExhausted();
+
+    getProvider().setQueryDelay(500);
+    contentResolver.insert(TABLE, testValues("key2", "val2"));
+    assertCursor(o).hasRow("key1", "val1").isExhausted();
+    assertEquals(1, timedOut.get());
+
+    o.dispose();
+  }
+
+  public void testSharedQueriesWriteSuppressesPatchedEcho() {
+    AtomicInteger mapped = new AtomicInteger();
+    Function1<Observable<Query>, ObservableSource<List<String>>> operator =
+        queries -> RxContentResolver.mapToList(queries, cursor -> {
+          mapped.incrementAndGet();
+          return cursor.getString(0);
+        });
+    SharedQueries sharedQueries = new SharedQueries(contentResolver);
+    TestObserver<List<String>> o = sharedQueries.observe(new QueryKey(TABLE), operator).test();
+    o.awaitCount(1).assertValue(emptyList());
+
+    sharedQueries.insert(TABLE, testValues("key1", "val1"), patches -> {
+      patches.patch(new QueryKey(TABLE), operator, keys -> {
+        List<String> patched = new ArrayList<>(keys);
+        patched.add("key1");
+        return patched;
+      });
+      return Unit.INSTANCE;
+    });
+    o.awaitCount(2);
+    assertEquals(singletonList("key1"), o.values().get(1));
+
+    contentResolver.insert(TABLE, testValues("key2", "val2"));
+    o.awaitCount(3);
+    assertEquals(asList("key1", "key2"), o.values().get(2));
+    assertEquals(2, mapped.get());
+
+    o.dispose();
+  }
+
+  public void testBatchHoldsRequeriesUntilItEnds() {
+    TestObserver<Query> o = RxContentResolver.observeQuery(contentResolver, TABLE)
+        .test();
+    assertCursor(o).isExhausted();
+
+    // Send the fence through the resolver which the provider notifies through.
+    Batches.batch(getContext().getContentResolver(), new Uri[] { TABLE }, resolver -> {
+      contentResolver.insert(TABLE, testValues("key1", "val1"));
+      contentResolver.insert(TABLE, testValues("key2", "val2"));
+      return Unit.INSTANCE;
+    });
+    assertCursor(o).hasRow("key1", "val1").hasRow("key2", "val2").isExhausted();
+
+    // A late second requery for the batch would be seen ahead of the one for this insert.
+    contentResolver.insert(TABLE, testValues("key3", "val3"));
+    assertCursor(o)
+        .hasRow("key1", "val1")
+        .hasRow("key2", "val2")
+        .hasRow("key3", "val3")
+        .isExhausted();
+
+    o.dispose();
+  }
+
+  public void testFrameSchedulerRunsOnMainThread() {
+    Looper looper = Observable.just(1)
+        .observeOn(FrameSchedulers.frameScheduler)
+        .map(ignored -> requireNonNull(Looper.myLooper()))
+        .blockingFirst();
+    assertSame(Looper.getMainLooper(), looper);
+  }
+
+  public void testEagerInitialQueryEmitsOnSubscribingThread() throws InterruptedException {
+    QueueScheduler scheduler = new QueueScheduler();
+
+    TestObserver<Query> o =
+        RxContentResolver.observeQuery(
+            contentResolver, TABLE, null, null, null, null, false, scheduler, null, true)
+                .test();
+    o.assertValueCount(1);
+    assertCursor(o).isExhausted();
+
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+    o.assertValueCount(0);
+    scheduler.awaitRunnable().run();
+    assertCursor(o).hasRow("key1", "val1").isExhausted();
+
+    o.dispose();
+  }
+
+  public void testSharedQueriesCoalesceProjections() {
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+    SharedQueries sharedQueries = new SharedQueries(contentResolver);
+    TestObserver<Query> keys =
+        sharedQueries.observeCoalesced(new QueryKey(TABLE, new String[] { KEY })).test();
+    assertCursor(keys).hasRow("key1").isExhausted();
+
+    TestObserver<Query> keysAndValues =
+        sharedQueries.observeCoalesced(new QueryKey(TABLE, new String[] { VALUE, KEY })).test();
+    assertCursor(keysAndValues).hasRow("val1", "key1").isExhausted();
+
+    // Requeried once with the union of both projections.
+    assertCursor(keys).hasRow("key1").isExhausted();
+
+    keys.dispose();
+    keysAndValues.dispose();
+  }
+
+  public void testTableMirrorEmitsOnlyForChangedRow() {
+    contentResolver.insert(TABLE, testValues("1", "val1"));
+    contentResolver.insert(TABLE, testValues("2", "val2"));
+    TableMirror mirror = new TableMirror(contentResolver, new QueryKey(TABLE), KEY);
+    TestObserver<String> o = mirror.mapToOne(2, cursor -> cursor.getString(1)).test();
+    o.awaitCount(1).assertValue("val2");
+
+    contentResolver.insert(TABLE, testValues("1", "changed1"));
+    contentResolver.insert(TABLE, testValues("2", "changed2"));
+    o.awaitCount(2).assertValues("val2", "changed2");
+
+    o.dispose();
+  }
+
+  public void testLookupBatcherReturnsOnlyRowsOfValue() {
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+    contentResolver.insert(TABLE, testValues("key2", "val2"));
+    LookupBatcher batcher = new LookupBatcher(contentResolver, new QueryKey(TABLE), KEY);
+    TestObserver<Query> o = RxContentResolver.observeQuery(contentResolver, TABLE)
+        .map(query -> batcher.lookup("key2"))
+        .test();
+    assertCursor(o).hasRow("key2", "val2").isExhausted();
+    o.dispose();
+
+    new CursorAssert(requireNonNull(batcher.lookup("key3").run())).isExhausted();
+  }
+
+  public void testSharedQueriesDiscardStaleResultAfterPatch() throws InterruptedException {
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Function1<Observable<Query>, ObservableSource<List<String>>> operator =
+        queries -> RxContentResolver.mapToList(queries, cursor -> {
+          if (cursor.getString(0).equals("key1") && blocked.getCount() > 0) {
+            blocked.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+          }
+          return cursor.getString(0);
+        });
+    SharedQueries sharedQueries = new SharedQueries(contentResolver);
+    TestObserver<List<String>> o = sharedQueries.observe(new QueryKey(TABLE), operator).test();
+    o.awaitCount(1).assertValue(emptyList());
+
+    // Start a requery which is still mapping when the patched write completes.
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+    blocked.await();
+
+    sharedQueries.insert(TABLE, testValues("key2", "val2"), patches -> {
+      patches.patch(new QueryKey(TABLE), operator, keys -> {
+        List<String> patched = new ArrayList<>(keys);
+        patched.add("key2");
+        return patched;
+      });
+      return Unit.INSTANCE;
+    });
+    o.awaitCount(2);
+    assertEquals(singletonList("key2"), o.values().get(1));
+
+    // The stale result is discarded and replaced by one which reflects the write.
+    release.countDown();
+    o.awaitCount(3);
+    assertEquals(asList("key1", "key2"), o.values().get(2));
+
+    o.dispose();
+  }
+
+  public void testIncrementalListPatchesChangedRows() {
+    contentResolver.insert(TABLE, testValues("1", "a"));
+    contentResolver.insert(TABLE, testValues("2", "b"));
+    TestObserver<List<String>> o = RxContentResolver.mapToListIncremental(
+        RxContentResolver.observeQuery(contentResolver, TABLE, null, null, null, null, true),
+        KEY, cursor -> cursor.getString(1))
+        .test();
+    o.awaitCount(1);
+    assertEquals(asList("a", "b"), o.values().get(0));
+
+    contentResolver.update(Uri.withAppendedPath(TABLE, "2"), testValues("2", "c"), null, null);
+    o.awaitCount(2);
+    assertEquals(asList("a", "c"), o.values().get(1));
+    assertEquals(KEY + " IN (?)", last(getProvider().selections()));
+
+    contentResolver.insert(Uri.withAppendedPath(TABLE, "3"), testValues("3", "d"));
+    o.awaitCount(3);
+    assertEquals(asList("a", "c", "d"), o.values().get(2));
+    assertEquals(KEY + " IN (?)", last(getProvider().selections()));
+
+    contentResolver.delete(Uri.withAppendedPath(TABLE, "1"), null, null);
+    o.awaitCount(4);
+    assertEquals(asList("c", "d"), o.values().get(3));
+    assertEquals(KEY + " IN (?)", last(getProvider().selections()));
+
+    o.dispose();
+  }
+
+  public void testIncrementalListRunsFullQueryForManyChangedRows() {
+    TestObserver<List<String>> o = RxContentResolver.mapToListIncremental(
+        RxContentResolver.observeQuery(contentResolver, TABLE, null, null, null, null, true),
+        KEY, cursor -> cursor.getString(1))
+        .test();
+    o.awaitCount(1).assertValue(emptyList());
+
+    Batches.batch(getContext().getContentResolver(), new Uri[] { TABLE }, resolver -> {
+      for (int id = 1; id <= 600; id++) {
+        contentResolver.insert(Uri.withAppendedPath(TABLE, "" + id), testValues("" + id, "v" + id));
+      }
+      return Unit.INSTANCE;
+    });
+    int count = 2;
+    o.awaitCount(count);
+    while (o.values().get(count - 1).size() < 600) {
+      o.awaitCount(++count);
+    }
+    // No query bound more ids than SQLite allows.
+    for (String selection : getProvider().selections()) {
+      int ids = selection == null ? 0 : selection.length() - selection.replace("?", "").length();
+      assertTrue(ids <= 500);
+    }
+
+    o.dispose();
+  }
+
+  public void testPauseWhileInactiveKeepsEveryChangedRow() {
+    contentResolver.insert(TABLE, testValues("1", "a"));
+    contentResolver.insert(TABLE, testValues("2", "b"));
+    BehaviorSubject<Boolean> active = BehaviorSubject.createDefault(true);
+    TestObserver<List<String>> o = RxContentResolver.mapToListIncremental(
+        RxContentResolver.pauseWhileInactive(
+            RxContentResolver.observeQuery(contentResolver, TABLE, null, null, null, null, true),
+            active),
+        KEY, cursor -> cursor.getString(1))
+        .test();
+    o.awaitCount(1);
+    assertEquals(asList("a", "b"), o.values().get(0));
+
+    active.onNext(false);
+    contentResolver.update(Uri.withAppendedPath(TABLE, "1"), testValues("1", "c"), null, null);
+    contentResolver.update(Uri.withAppendedPath(TABLE, "2"), testValues("2", "d"), null, null);
+    active.onNext(true);
+    // Neither change may be lost, however the notifications interleave with resuming.
+    int count = 2;
+    o.awaitCount(count);
+    while (!o.values().get(count - 1).equals(asList("c", "d"))) {
+      o.awaitCount(++count);
+    }
+
+    o.dispose();
+  }
+
+  public void testInlineThresholdRunsOnlyCheapWorkOnNotificationThread() {
+    TestObserver<String> cheap = RxContentResolver.observeQuery(
+        contentResolver, TABLE, null, null, null, null, false, Schedulers.io(), null, false,
+        1_000_000)
+        .map(query -> Thread.currentThread().getName())
+        .test();
+    TestObserver<String> expensive = RxContentResolver.observeQuery(
+        contentResolver, TABLE, null, null, null, null, false, Schedulers.io(), null, false,
+        1_000)
+        .map(query -> {
+          Thread.sleep(10);
+          return Thread.currentThread().getName();
+        })
+        .test();
+    // Below the threshold, but too expensive for the thread shared by every observer.
+    TestObserver<String> bounded = RxContentResolver.observeQuery(
+        contentResolver, TABLE, null, null, null, null, false, Schedulers.io(), null, false,
+        1_000_000)
+        .map(query -> {
+          Thread.sleep(1);
+          return Thread.currentThread().getName();
+        })
+        .test();
+    // The initial queries are always dispatched so that their cost can be measured.
+    cheap.awaitCount(1);
+    expensive.awaitCount(1);
+    bounded.awaitCount(1);
+    assertFalse(cheap.values().get(0).equals("copper-notifications"));
+
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+    cheap.awaitCount(2);
+    expensive.awaitCount(2);
+    bounded.awaitCount(2);
+    assertEquals("copper-notifications", cheap.values().get(1));
+    assertFalse(expensive.values().get(1).equals("copper-notifications"));
+    assertFalse(bounded.values().get(1).equals("copper-notifications"));
+
+    cheap.dispose();
+    expensive.dispose();
+    bounded.dispose();
+  }
+
+  public void testLookupBatcherRunsConcurrentLookupsAsOneQuery() {
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+    contentResolver.insert(TABLE, testValues("key2", "val2"));
+    LookupBatcher batcher = new LookupBatcher(contentResolver, new QueryKey(TABLE), KEY, 100);
+    int queried = getProvider().selections().size();
+
+    List<List<String>> results = Observable.fromArray("key1", "key2", "key3")
+        .concatMapEager(value -> Observable.fromCallable(() -> {
+          try (Cursor cursor = requireNonNull(batcher.lookup(value).run())) {
+            List<String> values = new ArrayList<>();
+            while (cursor.moveToNext()) {
+              values.add(cursor.getString(1));
+            }
+            return values;
+          }
+        }).subscribeOn(Schedulers.io()))
+        .toList()
+        .blockingGet();
+
+    assertEquals(asList(singletonList("val1"), singletonList("val2"), emptyList()), results);
+    List<String> selections = getProvider().selections();
+    assertEquals(
+        singletonList(KEY + " IN (?, ?, ?)"), selections.subList(queried, selections.size()));
+  }
+
+  public void testFrameSchedulerRunsPendingTasksInOneFrame() throws InterruptedException {
+    List<String> events = new CopyOnWriteArrayList<>();
+    CountDownLatch done = new CountDownLatch(4);
+    Handler mainHandler = new Handler(Looper.getMainLooper());
+    mainHandler.post(() -> {
+      // Scheduled from one main thread message, so all are pending before the next frame.
+      for (int i = 1; i <= 3; i++) {
+        int task = i;
+        FrameSchedulers.frameScheduler.scheduleDirect(() -> {
+          if (task == 1) {
+            mainHandler.post(() -> {
+              events.add("next message");
+              done.countDown();
+            });
+          }
+          events.add("ran " + task);
+          done.countDown();
+        });
+      }
+    });
+    assertTrue(done.await(5, SECONDS));
+
+    // A message posted by the first task runs only after the frame callback ran all three.
+    assertEquals(asList("ran 1", "ran 2", "ran 3", "next message"), events);
+  }
+
+  public void testChangeDuringRegistrationIsSeenByInitialQuery() {
+    TestObserver<Query> o = RxContentResolver.observeQuery(contentResolver, TABLE).test();
+    // Races the registration which triggers the initial query.
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+
+    ObservedQuery initial = (ObservedQuery) o.awaitCount(1).values().remove(0);
+    assertNull(initial.getChange());
+    assertEquals(0, initial.getGeneration());
+    new CursorAssert(requireNonNull(initial.run())).hasRow("key1", "val1").isExhausted();
+    // Any later query follows the initial one.
+    for (Query query : o.values()) {
+      assertTrue(((ObservedQuery) query).getGeneration() > 0);
+    }
+
+    o.dispose();
+  }
+
+  public void testSharedQueriesRollBackPatchOfFailedWrite() {
+    contentResolver.insert(TABLE, testValues("key1", "val1"));
+    Function1<Observable<Query>, ObservableSource<List<String>>> operator =
+        queries -> RxContentResolver.mapToList(queries, cursor -> cursor.getString(0));
+    SharedQueries sharedQueries = new SharedQueries(contentResolver);
+    TestObserver<List<String>> o = sharedQueries.observe(new QueryKey(TABLE), operator).test();
+    o.awaitCount(1).assertValue(singletonList("key1"));
+
+    try {
+      // No provider is registered for this authority, so the write fails.
+      sharedQueries.insert(Uri.parse("content://missing/table"), testValues("key2", "val2"),
+          patches -> {
+            patches.patch(new QueryKey(TABLE), operator, keys -> {
+              List<String> patched = new ArrayList<>(keys);
+              patched.add("key2");
+              return patched;
+            });
+            return Unit.INSTANCE;
+          });
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    o.awaitCount(3);
+    assertEquals(asList("key1", "key2"), o.values().get(1));
+    assertEquals(singletonList("key1"), o.values().get(2));
+
+    o.dispose();
+  }
 }
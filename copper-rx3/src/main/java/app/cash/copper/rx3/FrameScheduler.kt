@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@file:JvmName("FrameSchedulers")
+
+package app.cash.copper.rx3
+
+import app.cash.copper.FrameExecutor
+import io.reactivex.rxjava3.core.Scheduler
+import io.reactivex.rxjava3.schedulers.Schedulers
+
+/**
+ * A [Scheduler] which runs work on the main thread at the start of the next frame. Results
+ * observed on it between two frames are handled together, before that frame's layout, so that
+ * several queries invalidated by one write cause a single layout pass rather than one for each
+ * query:
+ * ```
+ * employees.observeOn(frameScheduler).subscribe { render(it) }
+ * ```
+ *
+ * Running on a frame adds up to one frame of latency, so only observe results on this scheduler
+ * when they update the UI.
+ *
+ * Every task run on this scheduler waits for the next frame, not only the delivery of results.
+ * Work which is scheduled on it repeatedly, such as with `subscribeOn` or `delay`, waits for a
+ * frame each time. Only use it with `observeOn` as the last step before the UI.
+ */
+@JvmField
+val frameScheduler: Scheduler = Schedulers.from(FrameExecutor)
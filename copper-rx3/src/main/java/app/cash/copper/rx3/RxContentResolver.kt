@@ -18,20 +18,40 @@
 package app.cash.copper.rx3
 
 import android.content.ContentResolver
-import android.database.ContentObserver
 import android.database.Cursor
 import android.net.Uri
-import android.os.Handler
-import android.os.Looper
 import androidx.annotation.CheckResult
 import androidx.annotation.RequiresApi
+import app.cash.copper.BoundedList
+import app.cash.copper.ChangeObserver
 import app.cash.copper.ContentResolverQuery
+import app.cash.copper.CursorSnapshot
+import app.cash.copper.IncrementalListMapper
+import app.cash.copper.LongKeyMap
+import app.cash.copper.LongRowFolder
+import app.cash.copper.ObservedQuery
 import app.cash.copper.Query
+import app.cash.copper.QueryCostTracker
+import app.cash.copper.QueryDeadline
+import app.cash.copper.QueryKey
+import app.cash.copper.QueryParameters
+import app.cash.copper.ResultBudget
+import app.cash.copper.coalesce
+import app.cash.copper.mapLazily
+import io.reactivex.rxjava3.core.BackpressureStrategy
+import io.reactivex.rxjava3.core.Maybe
 import io.reactivex.rxjava3.core.Observable
 import io.reactivex.rxjava3.core.ObservableSource
 import io.reactivex.rxjava3.core.Scheduler
 import io.reactivex.rxjava3.schedulers.Schedulers
+import io.reactivex.rxjava3.subjects.PublishSubject
+import io.reactivex.rxjava3.subjects.UnicastSubject
 import java.util.Optional
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.TimeUnit.NANOSECONDS
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
 
 /**
  * Create an observable which will notify subscribers with a [query][Query] for
@@ -42,11 +62,38 @@ import java.util.Optional
  * notifications for when the supplied `uri`'s data changes. Unsubscribe when you no longer
  * want updates to a query.
  *
+ * The content observer is registered and unregistered on a background thread rather than the
+ * calling thread. The initial query is emitted only once registration has completed so that no
+ * change made after it runs is missed.
+ *
  * Since content resolver triggers are inherently asynchronous, items emitted from the returned
  * observable use [scheduler] which defaults to [Schedulers.io]. For consistency, the immediate
  * notification sent on subscribe also uses this scheduler. As such, calling
  * [subscribeOn][Observable.subscribeOn] on the returned observable has no effect.
  *
+ * When [eagerInitialQuery] is true, the content observer is instead registered synchronously
+ * and the initial query is emitted on the subscribing thread, without waiting for [scheduler].
+ * Only queries triggered by changes use [scheduler]. This reduces the latency of the first result
+ * when subscribing on a background thread, such as inside `switchMap`. Do not enable it when
+ * subscribing on the main thread since registration is a binder call.
+ *
+ * When [inlineThresholdMicros] is positive, queries whose recent cost of running and mapping is
+ * below this many microseconds are emitted inline on the thread which received the change
+ * notification instead of on [scheduler]. Only work which runs synchronously downstream, such as
+ * [mapToOne], is measured, so expensive work moves back to [scheduler]. Use this for cheap lookups,
+ * such as from an in-process provider, where the thread hop costs more than the query. A single
+ * thread delivers the notifications of every observed query, so work which costs more than
+ * 200 microseconds always moves back to [scheduler] regardless of the threshold.
+ *
+ * Each emitted query is an [ObservedQuery] whose [change][ObservedQuery.change] describes the
+ * URIs and flags of the notification which triggered it, and whose
+ * [generation][ObservedQuery.generation] counts up from 0 for each subscriber. When
+ * [changeFilter] is supplied, only notifications for at least one URI which it accepts trigger a
+ * query. For example, to only requery for changes to some descendants with `notifyForDescendants`:
+ * ```
+ * changeFilter = { uri -> matcher.match(uri) != UriMatcher.NO_MATCH }
+ * ```
+ *
  * Note: To skip the immediate notification and only receive subsequent notifications when data
  * has changed call `skip(1)` on the returned observable.
  *
@@ -65,28 +112,305 @@ fun ContentResolver.observeQuery(
   selectionArgs: Array<String>? = null,
   sortOrder: String? = null,
   notifyForDescendants: Boolean = false,
-  scheduler: Scheduler = Schedulers.io()
+  scheduler: Scheduler = Schedulers.io(),
+  changeFilter: ((Uri) -> Boolean)? = null,
+  eagerInitialQuery: Boolean = false,
+  inlineThresholdMicros: Long = 0L
 ): Observable<Query> {
   val query = ContentResolverQuery(this, uri, projection, selection, selectionArgs, sortOrder)
-  val queries =
-    Observable.create<Query> { e ->
-      val observer = object : ContentObserver(mainThread) {
-        override fun onChange(selfChange: Boolean) {
-          if (!e.isDisposed) {
-            e.onNext(query)
+  return Observable.defer {
+    // The cost of inline work is tracked for each subscriber.
+    val scheduler = if (inlineThresholdMicros > 0L) {
+      scheduler.inlineWhenCheap(inlineThresholdMicros)
+    } else {
+      scheduler
+    }
+    if (eagerInitialQuery) {
+      observeQueryEagerly(query, notifyForDescendants, scheduler, changeFilter)
+    } else {
+      observeQueryAfterRegistration(query, notifyForDescendants, scheduler, changeFilter)
+    }
+  }
+}
+
+private fun ContentResolver.observeQueryAfterRegistration(
+  query: ContentResolverQuery,
+  notifyForDescendants: Boolean,
+  scheduler: Scheduler,
+  changeFilter: ((Uri) -> Boolean)?
+): Observable<Query> {
+  val contentResolver = this
+  return Observable.defer {
+    // Signals true for the initial query and false for changes. Buffered until subscribed.
+    val signals = UnicastSubject.create<Boolean>()
+    val sink = signals.toSerialized()
+    val observer = object : ChangeObserver(changeFilter) {
+      override fun onQueryChange() {
+        sink.onNext(false)
+      }
+    }
+    // Registration happens off this thread. The initial query is only triggered once it
+    // completes so that no change after the query runs is missed.
+    observer.register(contentResolver, query.uri, notifyForDescendants) { sink.onNext(true) }
+    // Queries are created on the scheduler rather than under a lock on the notifying thread, so
+    // generations stay in order without blocking other observers.
+    var generation = 0L
+    signals.observeOn(scheduler)
+      .flatMapMaybe<Query> { initial ->
+        if (initial) {
+          observer.takeChange() // Changes since registration are seen by the initial query.
+          Maybe.just(ObservedQuery(query, null, generation++))
+        } else if (generation == 0L) {
+          // Notified between registering and the initial signal. Left for the initial query to
+          // take rather than emitting a change ahead of it.
+          Maybe.empty()
+        } else {
+          val change = observer.takeChange()
+          if (change != null) {
+            Maybe.just(ObservedQuery(query, change, generation++))
+          } else {
+            Maybe.empty()
           }
         }
       }
-      registerContentObserver(uri, notifyForDescendants, observer)
-      e.setCancellable { unregisterContentObserver(observer) }
-      if (!e.isDisposed) {
-        e.onNext(query) // Trigger initial query.
+      .doFinally { observer.unregister(contentResolver) }
+  }
+}
+
+private fun ContentResolver.observeQueryEagerly(
+  query: ContentResolverQuery,
+  notifyForDescendants: Boolean,
+  scheduler: Scheduler,
+  changeFilter: ((Uri) -> Boolean)?
+): Observable<Query> {
+  val contentResolver = this
+  return Observable.defer {
+    // Buffers signals from notifications received before the initial query has been delivered.
+    val signals = UnicastSubject.create<Unit>()
+    val observer = object : ChangeObserver(changeFilter) {
+      override fun onQueryChange() {
+        signals.onNext(Unit)
+      }
+    }
+    registerContentObserver(query.uri, notifyForDescendants, observer)
+    observer.takeChange() // Changes since registration are seen by the initial query.
+    var generation = 1L // The initial query is generation 0.
+    signals.observeOn(scheduler)
+      .flatMapMaybe<Query> {
+        val change = observer.takeChange()
+        if (change != null) {
+          Maybe.just(ObservedQuery(query, change, generation++))
+        } else {
+          Maybe.empty()
+        }
+      }
+      .startWithItem(ObservedQuery(query, null))
+      .doFinally { observer.unregister(contentResolver) }
+  }
+}
+
+/**
+ * Create an observable which will notify subscribers with a [query][Query] of [uri] for execution
+ * using the most recent [parameters]. Subscribers are responsible for **always** closing [Cursor]
+ * instance returned from the [Query].
+ *
+ * Use this function instead of calling [observeQuery] again whenever the query's selection
+ * changes, such as for search-as-you-type screens. A single content observer stays registered for
+ * [uri] regardless of how many times [parameters] changes.
+ *
+ * No query is emitted until [parameters] emits its first value. Each new value then triggers a
+ * query whose [change][ObservedQuery.change] is null, and content changes trigger a query with
+ * the current value. Queries are delivered on [scheduler], and parameter and content changes
+ * which arrive while the previous query is still being handled on it are coalesced into a single
+ * query with the most recent parameters.
+ *
+ * **Warning:** this method does not perform the query! Only by subscribing to the returned
+ * [Observable] will the operation occur.
+ *
+ * @see ContentResolver.query
+ * @see ContentResolver.registerContentObserver
+ */
+@CheckResult
+@JvmOverloads
+fun ContentResolver.observeQuery(
+  uri: Uri,
+  parameters: ObservableSource<QueryParameters>,
+  notifyForDescendants: Boolean = false,
+  scheduler: Scheduler = Schedulers.io(),
+  changeFilter: ((Uri) -> Boolean)? = null
+): Observable<Query> {
+  val contentResolver = this
+  return Observable.defer {
+    val signals = PublishSubject.create<Any>().toSerialized()
+    val latest = AtomicReference<QueryParameters>()
+    val registered = AtomicBoolean()
+    val observer = object : ChangeObserver(changeFilter) {
+      override fun onQueryChange() {
+        signals.onNext(Unit)
       }
     }
-  return queries.observeOn(scheduler)
+
+    var current: QueryParameters? = null
+    var query: ContentResolverQuery? = null
+    var generation = 0L
+    Observable.merge<Any>(signals, parameters)
+      .doOnNext { event -> if (event is QueryParameters) latest.set(event) }
+      .doOnSubscribe {
+        observer.register(contentResolver, uri, notifyForDescendants) {
+          registered.set(true)
+          signals.onNext(Unit)
+        }
+      }
+      .doFinally { observer.unregister(contentResolver) }
+      .toFlowable(BackpressureStrategy.LATEST)
+      .observeOn(scheduler, false, 1)
+      .toObservable()
+      .flatMapMaybe<Query> {
+        val next = latest.get()
+        val change = observer.takeChange()
+        if (next == null || !registered.get()) {
+          Maybe.empty()
+        } else if (next != current) {
+          current = next
+          val newQuery = ContentResolverQuery(
+            contentResolver, uri, next.projection, next.selection, next.selectionArgs,
+            next.sortOrder
+          )
+          query = newQuery
+          Maybe.just(ObservedQuery(newQuery, null, generation++))
+        } else if (change != null) {
+          Maybe.just(ObservedQuery(query!!, change, generation++))
+        } else {
+          Maybe.empty()
+        }
+      }
+  }
 }
 
-private val mainThread = Handler(Looper.getMainLooper())
+internal fun ContentResolver.observeQuery(
+  key: QueryKey,
+  scheduler: Scheduler,
+  changeFilter: ((Uri) -> Boolean)? = null
+): Observable<Query> {
+  return observeQuery(
+    key.uri,
+    key.projection,
+    key.selection,
+    key.selectionArgs,
+    key.sortOrder,
+    key.notifyForDescendants,
+    scheduler,
+    changeFilter
+  )
+}
+
+/**
+ * Forward queries from this observable only while [active] most recently emitted true.
+ *
+ * Queries received while inactive are not executed. Instead, only the most recent is retained
+ * and it is emitted once when [active] next emits true, so that any number of changes while
+ * inactive result in a single requery. No queries are emitted until [active] first emits true.
+ *
+ * The [change][ObservedQuery.change] of the emitted query is merged with those of the queries it
+ * replaced, so operators which inspect it, such as [mapToListIncremental], see every change made
+ * while inactive.
+ *
+ * Use this operator ahead of mapping operators to stop observers of backgrounded screens from
+ * requerying, for example with an active observable derived from a lifecycle's started state.
+ */
+@CheckResult
+fun ObservableSource<out Query>.pauseWhileInactive(
+  active: ObservableSource<Boolean>
+): Observable<Query> {
+  val queries = this
+  return Observable.defer {
+    var isActive = false
+    var pending: Query? = null
+    Observable.merge<Any>(Observable.wrap(active).distinctUntilChanged(), queries)
+      .flatMapMaybe<Query> { event ->
+        if (event is Boolean) {
+          isActive = event
+          val query = pending
+          if (isActive && query != null) {
+            pending = null
+            Maybe.just(query)
+          } else {
+            Maybe.empty()
+          }
+        } else if (isActive) {
+          Maybe.just(event as Query)
+        } else {
+          val query = event as Query
+          pending = pending?.let { coalesce(it, query) } ?: query
+          Maybe.empty()
+        }
+      }
+  }
+}
+
+/**
+ * Limit each query from this observable to [timeoutMillis]. A query which the provider has not
+ * answered in time is canceled through a [CancellationSignal][android.os.CancellationSignal] and
+ * [onTimeout] is invoked on the thread which ran the query.
+ *
+ * By default a timed out query returns a `null` cursor, which mapping operators ignore so that
+ * the stream does not stall and the previous result remains current. When [reuseLastResult] is
+ * true, the last successful result is returned again instead so it is re-emitted. This copies
+ * every result into memory.
+ *
+ * Only queries emitted from [observeQuery] can be canceled. Queries returned from this operator
+ * are not [ObservedQuery] instances, so operators which inspect the triggering change (such as
+ * [mapToListIncremental]) always run the full query.
+ */
+@CheckResult
+@JvmOverloads
+fun ObservableSource<out Query>.withDeadline(
+  timeoutMillis: Long,
+  reuseLastResult: Boolean = false,
+  onTimeout: (Query) -> Unit = {}
+): Observable<Query> {
+  @Suppress("UNCHECKED_CAST") // Only ever read from, so the projection is safe to drop.
+  val queries = Observable.wrap(this as ObservableSource<Query>)
+  return Observable.defer {
+    val deadline = QueryDeadline(timeoutMillis, reuseLastResult, onTimeout)
+    queries.map { query -> deadline.wrap(query) }
+  }
+}
+
+/**
+ * Space out queries from this observable so that executing and mapping them takes no more than
+ * [dutyCycle] of the elapsed time. For example, with the default of 0.2 a query which takes 50ms
+ * to run and map is started at most every 250ms. Delayed queries are emitted on [scheduler],
+ * whose clock also measures the cost of each query.
+ *
+ * The cost of each query is measured from the start of [Query.run] until its cursor is closed,
+ * so the mapping operator must be applied downstream of this one. Queries received while waiting
+ * replace the pending query, so a burst of changes results in a single query. Once changes stop,
+ * the next one is emitted without delay.
+ *
+ * Queries returned from this operator are not [ObservedQuery] instances, so operators which
+ * inspect the triggering change (such as [mapToListIncremental]) always run the full query.
+ */
+@CheckResult
+@JvmOverloads
+fun ObservableSource<out Query>.rateLimitByCost(
+  dutyCycle: Double = 0.2,
+  scheduler: Scheduler = Schedulers.io()
+): Observable<Query> {
+  @Suppress("UNCHECKED_CAST") // Only ever read from, so the projection is safe to drop.
+  val queries = Observable.wrap(this as ObservableSource<Query>)
+  return Observable.defer {
+    val tracker = QueryCostTracker(dutyCycle) { scheduler.now(NANOSECONDS) }
+    queries.switchMap { query ->
+      val delayMillis = tracker.delayMillis()
+      if (delayMillis == 0L) {
+        Observable.just(tracker.wrap(query))
+      } else {
+        Observable.timer(delayMillis, MILLISECONDS, scheduler).map { tracker.wrap(query) }
+      }
+    }
+  }
+}
 
 /**
  * Execute the query on the underlying database and return an Observable of each row mapped to
@@ -180,3 +504,353 @@ fun <T : Any> ObservableSource<out Query>.mapToList(
 ): Observable<List<T>> {
   return QueryToListObservable(this, mapper)
 }
+
+/**
+ * Transforms a query observable to a `List<T>` using `mapper`, executing up to [maxConcurrency]
+ * queries at once on [scheduler].
+ *
+ * A query received while the previous one is still being mapped starts alongside it, so that a
+ * slow query under frequent changes does not fall progressively further behind. Queries received
+ * while [maxConcurrency] are already executing wait for one to finish, and are skipped if a newer
+ * query has been received by then.
+ *
+ * Results are emitted as they complete, except that a result from a query received before one
+ * whose result has already been emitted is discarded, as is any query still being mapped at that
+ * point. Emitted lists therefore never go back in time. For queries emitted by [observeQuery]
+ * the order received is their [generation][ObservedQuery.generation].
+ *
+ * This operator ignores `null` cursors returned from [run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null. Invoked from multiple
+ * threads at once.
+ */
+@CheckResult
+@JvmOverloads
+fun <T : Any> ObservableSource<out Query>.mapToListConcurrent(
+  maxConcurrency: Int = 2,
+  scheduler: Scheduler = Schedulers.io(),
+  mapper: (Cursor) -> T
+): Observable<List<T>> {
+  require(maxConcurrency > 0) { "maxConcurrency <= 0: $maxConcurrency" }
+  @Suppress("UNCHECKED_CAST") // Only ever read from, so the projection is safe to drop.
+  val queries = Observable.wrap(this as ObservableSource<Query>)
+  return Observable.defer {
+    val received = AtomicLong(-1L)
+    val latest = AtomicLong(-1L)
+    queries
+      .flatMap(
+        { query ->
+          val generation = received.incrementAndGet()
+          Maybe.defer<Pair<Long, List<T>>> {
+            // Skip queries superseded while waiting, and abandon those superseded while mapping.
+            val items = if (received.get() > generation) null else query.run()?.use { cursor ->
+              cursor.mapRowsUnless({ latest.get() > generation }, mapper)
+            }
+            if (items != null) Maybe.just(generation to items) else Maybe.empty()
+          }.subscribeOn(scheduler).toObservable()
+        },
+        maxConcurrency
+      )
+      .filter { (generation) ->
+        if (generation > latest.get()) {
+          latest.set(generation)
+          true
+        } else {
+          false
+        }
+      }
+      .map<List<T>> { (_, items) -> items }
+  }
+}
+
+/** Map each row of this cursor using [mapper], or return null once [abandon] returns true. */
+private inline fun <T> Cursor.mapRowsUnless(
+  abandon: () -> Boolean,
+  mapper: (Cursor) -> T
+): List<T>? {
+  val items = ArrayList<T>(count)
+  while (moveToNext()) {
+    if (abandon()) return null
+    items.add(mapper(this))
+  }
+  return items
+}
+
+/**
+ * Transforms a query observable to a [BoundedList] of `T` using `mapper`, mapping no more rows
+ * than [budget] allows. Use this operator over [mapToList] when a query could unexpectedly return
+ * a result too large to hold in memory.
+ *
+ * When the result exceeds the budget, the [overflow policy][ResultBudget.overflow] either emits
+ * the rows mapped so far as a [truncated][BoundedList.isTruncated] list or signals a
+ * [ResultTooLargeException][app.cash.copper.ResultTooLargeException] error. To process an
+ * unbounded result without holding every row, use [asRows] instead.
+ *
+ * This operator ignores `null` cursors returned from [run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+@CheckResult
+fun <T : Any> ObservableSource<out Query>.mapToListBounded(
+  budget: ResultBudget,
+  mapper: (Cursor) -> T
+): Observable<BoundedList<T>> {
+  return QueryToResultObservable(this) { cursor -> budget.map(cursor, mapper) }
+}
+
+/**
+ * Transforms a query observable to a `List<T>` whose items are mapped using `mapper` only when
+ * first accessed.
+ *
+ * The cursor is copied into an immutable snapshot and closed. Items are then mapped on the thread
+ * which calls [List.get], each at most once. Use this operator over [mapToList] when only a small
+ * subset of a large result will be read, such as the visible rows of a screen.
+ *
+ * This operator ignores `null` cursors returned from [run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+@CheckResult
+fun <T : Any> ObservableSource<out Query>.mapToLazyList(
+  mapper: (Cursor) -> T
+): Observable<List<T>> {
+  return QueryToResultObservable(this) { cursor -> CursorSnapshot.copyOf(cursor).mapLazily(mapper) }
+}
+
+/**
+ * Transforms a query observable to a `List<T>` using `mapper`, refreshing only the changed rows
+ * when possible.
+ *
+ * When a change notification names only row URIs of the form `<uri>/<id>`, where `<id>` is the
+ * value of [idColumn], just those rows are queried and patched into a copy of the previous list:
+ * updated rows are replaced in place, new rows are appended, and rows which no longer match are
+ * removed. Any other change, such as one for the table URI, runs the full query. Providers must
+ * therefore notify with row URIs for this operator to avoid full requeries.
+ *
+ * Appended rows are not sorted according to the query's sort order.
+ *
+ * This operator ignores `null` cursors returned from [run].
+ *
+ * @param idColumn A unique integer column identifying each row, such as `_id`.
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+@CheckResult
+fun <T : Any> ObservableSource<out Query>.mapToListIncremental(
+  idColumn: String,
+  mapper: (Cursor) -> T
+): Observable<List<T>> {
+  @Suppress("UNCHECKED_CAST") // Only ever read from, so the projection is safe to drop.
+  val queries = Observable.wrap(this as ObservableSource<Query>)
+  return Observable.defer {
+    val lists = IncrementalListMapper(idColumn, mapper)
+    queries.flatMapMaybe { query -> Maybe.fromCallable { lists.map(query) } }
+  }
+}
+
+/**
+ * Transforms a query observable to a [LongKeyMap] of `T` using `mapper`, keyed by the integer
+ * value of [keyColumn].
+ *
+ * The map is built during the same pass over the cursor which maps each row. Its keys are stored
+ * as primitives so lookups do not allocate. When multiple rows share a key, the value of the last
+ * row is retained. It is an error for [keyColumn] to be null in any row.
+ *
+ * This operator ignores `null` cursors returned from [run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+@CheckResult
+fun <T : Any> ObservableSource<out Query>.mapToMap(
+  keyColumn: String,
+  mapper: (Cursor) -> T
+): Observable<LongKeyMap<T>> {
+  return QueryToResultObservable(this) { cursor ->
+    val keyIndex = cursor.getColumnIndexOrThrow(keyColumn)
+    val builder = LongKeyMap.Builder<T>(cursor.count)
+    while (cursor.moveToNext()) {
+      check(!cursor.isNull(keyIndex)) { "Cursor returned null key in column '$keyColumn'" }
+      builder.put(cursor.getLong(keyIndex), mapper(cursor))
+    }
+    builder.build()
+  }
+}
+
+/**
+ * Transforms a query observable to the number of rows in its result set.
+ *
+ * No rows are mapped and a count is only emitted when it differs from the previous count.
+ *
+ * This operator ignores `null` cursors returned from [run].
+ */
+@CheckResult
+fun ObservableSource<out Query>.mapToCount(): Observable<Int> {
+  return QueryToResultObservable(this) { cursor -> cursor.count }.distinctUntilChanged()
+}
+
+/**
+ * Transforms a query observable to a single value by accumulating each row of its result set into
+ * [initial] using [operation].
+ *
+ * The fold runs inside the loop over the cursor so that no rows are materialized. A value is only
+ * emitted when it differs from the previous value. Use [foldRowsToLong] for numeric aggregates to
+ * avoid boxing the accumulator.
+ *
+ * This operator ignores `null` cursors returned from [run].
+ */
+@CheckResult
+fun <R : Any> ObservableSource<out Query>.foldRows(
+  initial: R,
+  operation: (accumulator: R, cursor: Cursor) -> R
+): Observable<R> {
+  return QueryToResultObservable(this) { cursor ->
+    var accumulator = initial
+    while (cursor.moveToNext()) {
+      accumulator = operation(accumulator, cursor)
+    }
+    accumulator
+  }.distinctUntilChanged()
+}
+
+/**
+ * Transforms a query observable to a single `long` by accumulating each row of its result set
+ * into [initial] using [operation].
+ *
+ * The fold runs inside the loop over the cursor with a primitive accumulator so that neither rows
+ * nor intermediate values are allocated. A value is only emitted when it differs from the previous
+ * value.
+ *
+ * This operator ignores `null` cursors returned from [run].
+ */
+@CheckResult
+fun ObservableSource<out Query>.foldRowsToLong(
+  initial: Long,
+  operation: LongRowFolder
+): Observable<Long> {
+  return QueryToResultObservable(this) { cursor ->
+    var accumulator = initial
+    while (cursor.moveToNext()) {
+      accumulator = operation.fold(accumulator, cursor)
+    }
+    accumulator
+  }.distinctUntilChanged()
+}
+
+/**
+ * Transforms a query observable to a `List<T>` using `mapper`, executing the query and mapping its
+ * rows as separate pipeline stages.
+ *
+ * Each query is run on the thread which emits it where its cursor is copied into an immutable
+ * snapshot and closed. The snapshot is then mapped on [mapScheduler] which defaults to the
+ * CPU-bound [Schedulers.computation]. The next query may execute while the previous result is
+ * being mapped. When multiple snapshots are produced while mapping is in progress, only the newest
+ * is mapped.
+ *
+ * This operator ignores `null` cursors returned from [run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+@CheckResult
+@JvmOverloads
+fun <T : Any> ObservableSource<out Query>.mapToListPipelined(
+  mapScheduler: Scheduler = Schedulers.computation(),
+  mapper: (Cursor) -> T
+): Observable<List<T>> {
+  return mapToSnapshot()
+    .toFlowable(BackpressureStrategy.LATEST)
+    .observeOn(mapScheduler, false, 1)
+    .map { snapshot -> snapshot.mapRows(mapper) }
+    .toObservable()
+}
+
+/**
+ * Transforms a query observable to a `List<T>` using `mapper`, mapping large result sets in
+ * parallel.
+ *
+ * Each query is run on the thread which emits it where its cursor is copied into an immutable
+ * snapshot and closed. The rows of the snapshot are then split into up to [parallelism]
+ * contiguous chunks which are mapped concurrently on [mapScheduler] and reassembled in their
+ * original order. Small result sets are mapped as a single chunk. When multiple snapshots are
+ * produced while mapping is in progress, only the newest is mapped.
+ *
+ * Use this operator over [mapToList] only for very large result sets with expensive mappers.
+ * [mapper] must be safe to invoke from multiple threads at once.
+ *
+ * This operator ignores `null` cursors returned from [run].
+ *
+ * @param mapper Maps the current [Cursor] row to `T`. May not return null.
+ */
+@CheckResult
+@JvmOverloads
+fun <T : Any> ObservableSource<out Query>.mapToListParallel(
+  parallelism: Int = Runtime.getRuntime().availableProcessors(),
+  mapScheduler: Scheduler = Schedulers.computation(),
+  mapper: (Cursor) -> T
+): Observable<List<T>> {
+  require(parallelism > 0) { "parallelism <= 0: $parallelism" }
+  return mapToSnapshot()
+    .toFlowable(BackpressureStrategy.LATEST)
+    .concatMapSingle<List<T>>({ snapshot ->
+      val count = snapshot.count
+      val maxChunks = (count + PARALLEL_CHUNK_MIN_ROWS - 1) / PARALLEL_CHUNK_MIN_ROWS
+      val chunks = minOf(parallelism, maxChunks).coerceAtLeast(1)
+      val chunkSize = (count + chunks - 1) / chunks
+      Observable.range(0, chunks)
+        .concatMapEager(
+          { chunk ->
+            Observable.fromCallable {
+              val fromIndex = minOf(chunk * chunkSize, count)
+              snapshot.mapRows(fromIndex, minOf(fromIndex + chunkSize, count), mapper)
+            }.subscribeOn(mapScheduler)
+          },
+          chunks,
+          1
+        )
+        .collectInto(ArrayList<T>(count)) { items, chunk -> items.addAll(chunk) }
+        .map<List<T>> { it }
+    }, 1)
+    .toObservable()
+}
+
+/**
+ * The fewest rows worth mapping as a separate chunk in [mapToListParallel]. Dispatching and
+ * reassembling a chunk costs roughly as much as mapping this many rows with a cheap mapper, so
+ * smaller chunks only add overhead.
+ */
+private const val PARALLEL_CHUNK_MIN_ROWS = 256
+
+/**
+ * Transforms a query observable to an immutable [CursorSnapshot] of its result set.
+ *
+ * The cursor is copied and closed. A snapshot can be read any number of times, allowing several
+ * mappers to share a single execution of the query. See [mapSnapshot].
+ *
+ * This operator ignores `null` cursors returned from [run].
+ */
+@CheckResult
+fun ObservableSource<out Query>.mapToSnapshot(): Observable<CursorSnapshot> {
+  return QueryToResultObservable(this) { cursor -> CursorSnapshot.copyOf(cursor) }
+}
+
+/**
+ * Transforms a query observable to an `R` using [transform] which receives an immutable snapshot
+ * of the result set.
+ *
+ * Use this operator to feed a single execution of the query to several mappers and emit their
+ * results together, instead of attaching multiple operators which each run the query:
+ * ```
+ * observeQuery(uri).mapSnapshot { snapshot ->
+ *   EmployeeScreen(
+ *     employees = snapshot.mapRows(Employee.MAPPER),
+ *     count = snapshot.count,
+ *   )
+ * }
+ * ```
+ *
+ * This operator ignores `null` cursors returned from [run].
+ */
+@CheckResult
+fun <R : Any> ObservableSource<out Query>.mapSnapshot(
+  transform: (CursorSnapshot) -> R
+): Observable<R> {
+  return QueryToResultObservable(this) { cursor -> transform(CursorSnapshot.copyOf(cursor)) }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper.rx3
+
+import android.content.ContentProviderOperation
+import android.content.ContentProviderResult
+import android.content.ContentResolver
+import android.content.ContentValues
+import android.content.OperationApplicationException
+import android.net.Uri
+import android.os.RemoteException
+import androidx.annotation.CheckResult
+import androidx.annotation.WorkerThread
+import app.cash.copper.EchoFilter
+import app.cash.copper.ProjectionUnion
+import app.cash.copper.Query
+import app.cash.copper.QueryKey
+import io.reactivex.rxjava3.core.Maybe
+import io.reactivex.rxjava3.core.Observable
+import io.reactivex.rxjava3.core.ObservableSource
+import io.reactivex.rxjava3.core.Scheduler
+import io.reactivex.rxjava3.disposables.Disposable
+import io.reactivex.rxjava3.schedulers.Schedulers
+import io.reactivex.rxjava3.subjects.BehaviorSubject
+import io.reactivex.rxjava3.subjects.PublishSubject
+import io.reactivex.rxjava3.subjects.Subject
+import java.util.concurrent.TimeUnit.MILLISECONDS
+
+/**
+ * A registry of observed queries which are shared by all of their subscribers.
+ *
+ * Subscribing to the observable returned from [observe] for a key and operator which already has
+ * subscribers does not execute the query again. Instead, every subscriber receives the same mapped
+ * results, starting with the most recent. The query is observed while at least one subscriber is
+ * active, and for [stopTimeoutMillis] after the last one disposes so that quickly resubscribing
+ * (such as across a configuration change) does not requery.
+ *
+ * Queries observed through [observeCoalesced] which differ only in their projection are executed
+ * once with the union of their projections, and each subscriber reads its own columns from the
+ * shared result.
+ *
+ * Writes made through [insert], [update], [delete], and [applyBatch] can optimistically patch the
+ * results of shared queries whose new state is already known. Patched queries are not requeried
+ * for the notification which the write causes, unless the write fails.
+ */
+class SharedQueries @JvmOverloads constructor(
+  private val contentResolver: ContentResolver,
+  private val stopTimeoutMillis: Long = DEFAULT_STOP_TIMEOUT_MILLIS,
+  private val scheduler: Scheduler = Schedulers.io()
+) {
+  private val entries = mutableMapOf<EntryId, Entry>()
+  private val groups = mutableMapOf<QueryKey, Group>()
+
+  /**
+   * Observe the query described by [key] with results mapped by [operator]. Queries are shared
+   * when both [key] and [operator] are equal, so [operator] should be a single instance such as a
+   * field rather than a new lambda for every call:
+   * ```
+   * val toEmployees: (Observable<Query>) -> Observable<List<Employee>> = { it.mapToList(MAPPER) }
+   *
+   * sharedQueries.observe(QueryKey(uri), toEmployees)
+   * ```
+   */
+  @CheckResult
+  fun <T : Any> observe(
+    key: QueryKey,
+    operator: (Observable<Query>) -> ObservableSource<T>
+  ): Observable<T> {
+    val id = EntryId(key, operator)
+    return Observable.defer {
+      val entry = acquire(id) { entry -> operator(stampedQueries(key, entry)) }
+      @Suppress("UNCHECKED_CAST")
+      val values = entry.values as Observable<T>
+      values.doFinally { release(id, entry) }
+    }
+  }
+
+  /**
+   * Observe the query described by [key], coalesced with every other query observed through this
+   * function which differs only in its projection. For example, list items which read 3 columns of
+   * a table and a detail screen which reads 12 columns of it are served by a single query.
+   *
+   * The shared query requests the union of the projections of its subscribers, and each emitted
+   * [Query] returns a view of only the columns of [key]'s projection over a snapshot of its
+   * result. When a subscriber requests a column which the shared query does not yet include, it
+   * is requeried with that column added. Columns are not removed until the shared query is
+   * stopped.
+   *
+   * Projections must name columns of the result rather than expressions, since they are read from
+   * the shared result by name.
+   */
+  @CheckResult
+  fun observeCoalesced(key: QueryKey): Observable<Query> {
+    val groupKey = key.withProjection(null)
+    val projection = key.projection
+    return Observable.defer {
+      val group = join(groupKey, projection)
+      group.results
+        .flatMapMaybe { result ->
+          result.queryOf(projection)?.let { Maybe.just(it) } ?: Maybe.empty<Query>()
+        }
+        .doFinally { leave(groupKey, group) }
+    }
+  }
+
+  /**
+   * Insert [values] into [uri], first applying the [patches] to the results of any matching
+   * shared queries. See [Patches].
+   */
+  @WorkerThread
+  @JvmOverloads
+  fun insert(uri: Uri, values: ContentValues, patches: Patches.() -> Unit = {}): Uri? {
+    return write(listOf(uri), patches) { contentResolver.insert(uri, values) }
+  }
+
+  /**
+   * Update rows of [uri], first applying the [patches] to the results of any matching shared
+   * queries. See [Patches].
+   */
+  @WorkerThread
+  @JvmOverloads
+  fun update(
+    uri: Uri,
+    values: ContentValues,
+    where: String? = null,
+    selectionArgs: Array<String>? = null,
+    patches: Patches.() -> Unit = {}
+  ): Int {
+    return write(listOf(uri), patches) {
+      contentResolver.update(uri, values, where, selectionArgs)
+    }
+  }
+
+  /**
+   * Delete rows of [uri], first applying the [patches] to the results of any matching shared
+   * queries. See [Patches].
+   */
+  @WorkerThread
+  @JvmOverloads
+  fun delete(
+    uri: Uri,
+    where: String? = null,
+    selectionArgs: Array<String>? = null,
+    patches: Patches.() -> Unit = {}
+  ): Int {
+    return write(listOf(uri), patches) { contentResolver.delete(uri, where, selectionArgs) }
+  }
+
+  /**
+   * Apply [operations] to the provider for [authority], first applying the [patches] to the
+   * results of any matching shared queries. One notification is expected for each operation. See
+   * [Patches].
+   */
+  @WorkerThread
+  @JvmOverloads
+  @Throws(RemoteException::class, OperationApplicationException::class)
+  fun applyBatch(
+    authority: String,
+    operations: ArrayList<ContentProviderOperation>,
+    patches: Patches.() -> Unit = {}
+  ): Array<ContentProviderResult> {
+    return write(operations.map { it.uri }, patches) {
+      contentResolver.applyBatch(authority, operations)
+    }
+  }
+
+  private fun <R> write(uris: List<Uri>, patches: Patches.() -> Unit, write: () -> R): R {
+    val applied = Patches(uris).apply(patches)
+    val result = try {
+      write()
+    } catch (e: Throwable) {
+      // Only the patched queries are wrong, so requery them locally rather than notifying.
+      applied.complete(succeeded = false)
+      throw e
+    }
+    applied.complete(succeeded = true)
+    return result
+  }
+
+  /**
+   * Optimistic updates applied to the results of shared queries before a write. Each [patch]
+   * immediately replaces the current result of the query which is shared for its key and operator
+   * with the result of its transform. The notification caused by the write then does not requery
+   * it.
+   *
+   * Queries which are not currently shared, or which do not yet have a result, are not patched.
+   * Other queries of the written URI are requeried as usual.
+   *
+   * A result of a patched query which was started before the write completed may not reflect the
+   * write, so it is discarded and the query runs again once the write has completed. When the
+   * write fails, the patched queries run again so that their patches are rolled back.
+   */
+  inner class Patches internal constructor(private val uris: List<Uri>) {
+    private val patched = mutableListOf<Entry>()
+
+    fun <T : Any> patch(
+      key: QueryKey,
+      operator: (Observable<Query>) -> ObservableSource<T>,
+      transform: (T) -> T
+    ) {
+      synchronized(entries) {
+        val entry = entries[EntryId(key, operator)] ?: return
+        @Suppress("UNCHECKED_CAST")
+        val current = entry.values.value as T? ?: return
+        entry.sink.onNext(transform(current))
+        entry.patchedWrites++
+        uris.forEach(entry.echoes::expect)
+        patched += entry
+      }
+    }
+
+    internal fun complete(succeeded: Boolean) {
+      synchronized(entries) {
+        for (entry in patched) {
+          entry.completedWrites++
+          for (uri in uris) {
+            if (succeeded) {
+              entry.echoes.settle(uri, ECHO_GRACE_MILLIS)
+            } else {
+              entry.echoes.cancel(uri)
+            }
+          }
+          // A failed write rolls back its patch by running the query again.
+          if (!succeeded || entry.staleDropped && entry.completedWrites == entry.patchedWrites) {
+            entry.staleDropped = false
+            entry.refreshes.onNext(Unit)
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the queries of [key] for [entry], recording when each is emitted so that results
+   * which may predate a patched write can be discarded by [offer]. Queries are emitted again for
+   * the entry's [refreshes][Entry.refreshes].
+   */
+  private fun stampedQueries(key: QueryKey, entry: Entry): Observable<Query> {
+    return Observable.defer {
+      var latest: Query? = null
+      Observable.merge<Any>(
+        contentResolver.observeQuery(key, scheduler, entry.echoes),
+        entry.refreshes.observeOn(scheduler)
+      ).flatMapMaybe<Query> { event ->
+        if (event is Query) latest = event
+        val query = latest
+        if (query == null) {
+          Maybe.empty()
+        } else {
+          synchronized(entries) {
+            entry.queryStamp = entry.completedWrites
+          }
+          Maybe.just(query)
+        }
+      }
+    }
+  }
+
+  /**
+   * Emit [value] from the latest query of [entry], unless that query was emitted before a write
+   * which patched it had completed. Such a result may not reflect the write, so it is discarded
+   * and the query runs again once no patched write is in progress.
+   */
+  private fun offer(entry: Entry, value: Any) {
+    synchronized(entries) {
+      if (entry.queryStamp >= entry.patchedWrites) {
+        entry.sink.onNext(value)
+      } else if (entry.completedWrites == entry.patchedWrites) {
+        entry.refreshes.onNext(Unit)
+      } else {
+        entry.staleDropped = true
+      }
+    }
+  }
+
+  private fun <T : Any> acquire(
+    id: EntryId,
+    upstream: (Entry) -> ObservableSource<T>
+  ): Entry {
+    synchronized(entries) {
+      val entry = entries.getOrPut(id) { Entry() }
+      entry.subscribers++
+      entry.stop?.dispose()
+      entry.stop = null
+      if (entry.upstream == null) {
+        entry.upstream = Observable.wrap(upstream(entry)).subscribe(
+          { value -> offer(entry, value) },
+          { error ->
+            synchronized(entries) {
+              removeEntry(id, entry)
+            }
+            entry.sink.onError(error)
+          },
+          {
+            synchronized(entries) {
+              removeEntry(id, entry)
+            }
+            entry.sink.onComplete()
+          }
+        )
+      }
+      return entry
+    }
+  }
+
+  private fun release(id: EntryId, entry: Entry) {
+    synchronized(entries) {
+      if (--entry.subscribers > 0) return
+      entry.stop = scheduler.scheduleDirect(
+        {
+          synchronized(entries) {
+            if (entry.subscribers == 0) {
+              entry.upstream?.dispose()
+              removeEntry(id, entry)
+            }
+          }
+        },
+        stopTimeoutMillis,
+        MILLISECONDS
+      )
+    }
+  }
+
+  private fun removeEntry(id: EntryId, entry: Entry) {
+    if (entries[id] === entry) {
+      entries.remove(id)
+    }
+  }
+
+  private fun join(key: QueryKey, projection: Array<String>?): Group {
+    synchronized(groups) {
+      val group = groups.getOrPut(key) { Group() }
+      group.subscribers++
+      group.stop?.dispose()
+      group.stop = null
+      if (group.union.add(projection) || group.upstream == null) {
+        group.upstream?.dispose()
+        val union = group.union.projection
+        group.upstream = contentResolver.observeQuery(key.withProjection(union), scheduler)
+          .mapToSnapshot()
+          .subscribe(
+            { snapshot -> group.sink.onNext(ProjectionUnion.Result(union, snapshot)) },
+            { error ->
+              synchronized(groups) {
+                removeGroup(key, group)
+              }
+              group.sink.onError(error)
+            },
+            {
+              synchronized(groups) {
+                removeGroup(key, group)
+              }
+              group.sink.onComplete()
+            }
+          )
+      }
+      return group
+    }
+  }
+
+  private fun leave(key: QueryKey, group: Group) {
+    synchronized(groups) {
+      if (--group.subscribers > 0) return
+      group.stop = scheduler.scheduleDirect(
+        {
+          synchronized(groups) {
+            if (group.subscribers == 0) {
+              group.upstream?.dispose()
+              removeGroup(key, group)
+            }
+          }
+        },
+        stopTimeoutMillis,
+        MILLISECONDS
+      )
+    }
+  }
+
+  private fun removeGroup(key: QueryKey, group: Group) {
+    if (groups[key] === group) {
+      groups.remove(key)
+    }
+  }
+
+  private fun QueryKey.withProjection(projection: Array<String>?): QueryKey {
+    return QueryKey(uri, projection, selection, selectionArgs, sortOrder, notifyForDescendants)
+  }
+
+  private data class EntryId(val key: QueryKey, val operator: Any)
+
+  private class Entry {
+    val values: BehaviorSubject<Any> = BehaviorSubject.create()
+    /** Serializes upstream values with patches from writing threads. */
+    val sink: Subject<Any> = values.toSerialized()
+    val echoes = EchoFilter(ECHO_TIMEOUT_MILLIS)
+    /** Signals to run the latest query again after its result was discarded by [offer]. */
+    val refreshes: Subject<Unit> = PublishSubject.create<Unit>().toSerialized()
+    /** The number of writes which patched this entry. Guarded by the entries lock. */
+    var patchedWrites = 0
+    /** The number of those writes which have completed. Guarded by the entries lock. */
+    var completedWrites = 0
+    /** The value of [completedWrites] when the latest query was emitted. */
+    var queryStamp = 0
+    /** True if a result was discarded while a write was still in progress. */
+    var staleDropped = false
+    var subscribers = 0
+    var upstream: Disposable? = null
+    var stop: Disposable? = null
+  }
+
+  private class Group {
+    val union = ProjectionUnion()
+    val results: BehaviorSubject<ProjectionUnion.Result> = BehaviorSubject.create()
+    /** Serializes the results of a replaced query with those of its replacement. */
+    val sink: Subject<ProjectionUnion.Result> = results.toSerialized()
+    var subscribers = 0
+    var upstream: Disposable? = null
+    var stop: Disposable? = null
+  }
+
+  companion object {
+    /** The default time for which a query is still observed after its last subscriber disposes. */
+    const val DEFAULT_STOP_TIMEOUT_MILLIS = 5_000L
+
+    /** The time for which the notification caused by a patched write is expected. */
+    private const val ECHO_TIMEOUT_MILLIS = 2_000L
+
+    /** The time after a patched write completes for which its notification is still expected. */
+    private const val ECHO_GRACE_MILLIS = 100L
+  }
+}
@@ -5,9 +5,13 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.test.mock.MockContentProvider;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public final class TestContentProvider extends MockContentProvider {
   public static final Uri AUTHORITY = Uri.parse("content://test_authority");
@@ -23,6 +27,9 @@ public final class TestContentProvider extends MockContentProvider {
   }
 
   private final Map<String, String> storage = new LinkedHashMap<>();
+  private final List<String> selections = new CopyOnWriteArrayList<>();
+
+  private volatile long queryDelayMillis;
 
   private ContentResolver contentResolver;
 
@@ -30,6 +37,22 @@ public final class TestContentProvider extends MockContentProvider {
     this.contentResolver = contentResolver;
   }
 
+  /** Delay each subsequent query by {@code millis} before it returns. */
+  public void setQueryDelay(long millis) {
+    queryDelayMillis = millis;
+  }
+
+  /** The selection of each query received, in order. */
+  public List<String> selections() {
+    return selections;
+  }
+
+  /** Returns the key of the row named by {@code uri}, or null if it names the whole table. */
+  private static String rowKey(Uri uri) {
+    List<String> segments = uri.getPathSegments();
+    return segments.size() > TABLE.getPathSegments().size() ? uri.getLastPathSegment() : null;
+  }
+
   @Override public Uri insert(Uri uri, ContentValues values) {
     storage.put(values.getAsString(KEY), values.getAsString(VALUE));
     contentResolver.notifyChange(uri, null);
@@ -38,6 +61,13 @@ public final class TestContentProvider extends MockContentProvider {
 
   @Override public int update(Uri uri, ContentValues values, String selection,
       String[] selectionArgs) {
+    String rowKey = rowKey(uri);
+    if (rowKey != null) {
+      if (!storage.containsKey(rowKey)) return 0;
+      storage.put(rowKey, values.getAsString(VALUE));
+      contentResolver.notifyChange(uri, null);
+      return 1;
+    }
     for (String key : storage.keySet()) {
       storage.put(key, values.getAsString(VALUE));
     }
@@ -46,6 +76,12 @@ public final class TestContentProvider extends MockContentProvider {
   }
 
   @Override public int delete(Uri uri, String selection, String[] selectionArgs) {
+    String rowKey = rowKey(uri);
+    if (rowKey != null) {
+      if (storage.remove(rowKey) == null) return 0;
+      contentResolver.notifyChange(uri, null);
+      return 1;
+    }
     int result = storage.size();
     storage.clear();
     contentResolver.notifyChange(uri, null);
@@ -54,8 +90,15 @@ public final class TestContentProvider extends MockContentProvider {
 
   @Override public Cursor query(Uri uri, String[] projection, String selection,
       String[] selectionArgs, String sortOrder) {
+    selections.add(selection);
+    SystemClock.sleep(queryDelayMillis);
+    // Only a selection restricting the key to a set of values is honored.
+    List<String> keys = selection != null && selection.contains(KEY + " IN (")
+        ? Arrays.asList(selectionArgs)
+        : null;
     MatrixCursor result = new MatrixCursor(new String[] { KEY, VALUE });
     for (Map.Entry<String, String> entry : storage.entrySet()) {
+      if (keys != null && !keys.contains(entry.getKey())) continue;
       result.addRow(new Object[] { entry.getKey(), entry.getValue() });
     }
     return result;
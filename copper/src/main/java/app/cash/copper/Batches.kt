@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@file:JvmName("Batches")
+
+package app.cash.copper
+
+import android.content.ContentResolver
+import android.database.ContentObserver
+import android.net.Uri
+import android.os.Process
+
+/**
+ * Run [block], holding back the requeries of observed queries for changes to [uris] or their
+ * descendants until it returns. Each observed query which was notified of such a change during
+ * [block] then requeries exactly once, with a [change][ObservedQuery.change] containing every
+ * notified URI. Use this around bulk writes so that observers never see a partially applied
+ * batch:
+ * ```
+ * contentResolver.batch(uri) {
+ *   for (values in rows) {
+ *     insert(uri, values)
+ *   }
+ * }
+ * ```
+ *
+ * Batches may be nested or run concurrently, in which case a requery is held until no batch
+ * covers any of the URIs it was notified for. Notifications which do not name a URI cannot be
+ * attributed to a batch and are never held.
+ *
+ * Change notifications are delivered asynchronously, so when [block] returns a fence
+ * notification is sent through this resolver, and the held requeries are released once it is
+ * delivered, behind the notifications sent before it. This is best-effort: notifications which
+ * a provider sends after its call returns, or through a resolver which does not deliver them
+ * (such as a `MockContentResolver`), may arrive after the release and requery separately. If
+ * the fence is never delivered the requeries are released after a second.
+ */
+fun <R> ContentResolver.batch(vararg uris: Uri, block: ContentResolver.() -> R): R {
+  require(uris.isNotEmpty()) { "uris.isEmpty()" }
+  val batch = uris.toList()
+  BatchRegistry.begin(this, batch)
+  try {
+    return block()
+  } finally {
+    BatchRegistry.end(this, batch)
+  }
+}
+
+/** The time after which a [batch] whose fence notification was not delivered is released. */
+private const val FENCE_TIMEOUT_MILLIS = 1_000L
+
+/** The URIs of active batches and the observers whose changes are held until they end. */
+internal object BatchRegistry {
+  private val active = ArrayList<Uri>()
+  private val held = LinkedHashMap<ChangeObserver, MutableSet<Uri>>()
+  private val fences = HashMap<Long, List<Uri>>()
+  private var nextFence = 0L
+
+  /** Scoped to this process so that fences are never delivered to another one. */
+  private val fenceUri = Uri.parse("content://app.cash.copper.batch/${Process.myPid()}")
+  private var fenceObserver: ContentObserver? = null
+
+  fun begin(contentResolver: ContentResolver, uris: List<Uri>) {
+    synchronized(this) {
+      if (fenceObserver == null) {
+        val observer = object : ContentObserver(notifications) {
+          override fun onChange(selfChange: Boolean, uri: Uri?) {
+            uri?.lastPathSegment?.toLongOrNull()?.let(::releaseFence)
+          }
+        }
+        contentResolver.registerContentObserver(fenceUri, true, observer)
+        fenceObserver = observer
+      }
+      active += uris
+    }
+  }
+
+  /**
+   * Send a fence notification through [contentResolver] which releases [uris] when it is
+   * delivered, behind the notifications already sent by the batch.
+   */
+  fun end(contentResolver: ContentResolver, uris: List<Uri>) {
+    val fence = synchronized(this) {
+      nextFence++.also { fences[it] = uris }
+    }
+    notifications.postDelayed({ releaseFence(fence) }, FENCE_TIMEOUT_MILLIS)
+    val uri = fenceUri.buildUpon().appendPath(fence.toString()).build()
+    contentResolver.notifyChange(uri, null, false)
+  }
+
+  private fun releaseFence(fence: Long) {
+    val uris = synchronized(this) { fences.remove(fence) } ?: return
+    release(uris).forEach(ChangeObserver::release)
+  }
+
+  private fun release(uris: List<Uri>): List<ChangeObserver> {
+    synchronized(this) {
+      uris.forEach { active.remove(it) }
+      val released = held.filterValues { changed -> changed.none(::isCovered) }.keys.toList()
+      released.forEach { held.remove(it) }
+      return released
+    }
+  }
+
+  /**
+   * Returns true if any of [uris] belongs to an active batch, in which case [observer] is held
+   * until it ends.
+   */
+  fun hold(observer: ChangeObserver, uris: Collection<Uri>): Boolean {
+    synchronized(this) {
+      val covered = uris.filter(::isCovered)
+      if (covered.isEmpty()) return false
+      held.getOrPut(observer) { LinkedHashSet() } += covered
+      return true
+    }
+  }
+
+  private fun isCovered(uri: Uri) = active.any { uri.isSameOrDescendantOf(it) }
+}
+
+internal fun Uri.isSameOrDescendantOf(other: Uri): Boolean {
+  if (scheme != other.scheme || authority != other.authority) return false
+  val segments = pathSegments
+  val otherSegments = other.pathSegments
+  return segments.size >= otherSegments.size &&
+    segments.subList(0, otherSegments.size) == otherSegments
+}
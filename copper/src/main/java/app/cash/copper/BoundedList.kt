@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+/**
+ * A list of mapped rows limited by a [ResultBudget]. When [isTruncated] is true the query
+ * returned more rows than the budget allowed and only the leading rows are present.
+ *
+ * Equality follows the [List] contract, so that a bounded list equals any list with the same items
+ * and vice versa. [isTruncated] is therefore ignored and must be compared separately where it
+ * matters, such as before dropping a result which is equal to the previous one.
+ */
+class BoundedList<T>(
+  private val items: List<T>,
+  val isTruncated: Boolean
+) : List<T> by items {
+  override fun equals(other: Any?): Boolean {
+    if (other === this) return true
+    if (other !is List<*> || other.size != size) return false
+    val otherItems = other.iterator()
+    return items.all { it == otherItems.next() }
+  }
+
+  override fun hashCode() = items.hashCode()
+
+  override fun toString() = items.toString()
+}
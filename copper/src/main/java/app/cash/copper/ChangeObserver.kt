@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.content.ContentResolver
+import android.database.ContentObserver
+import android.net.Uri
+import android.os.Handler
+import android.os.HandlerThread
+import androidx.annotation.RequiresApi
+import androidx.annotation.RestrictTo
+import androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+
+/**
+ * A [ContentObserver] which accumulates the changed URIs and flags of every notification until
+ * they are consumed with [takeChange]. Notifications whose URIs are all rejected by [filter] are
+ * ignored. A notification for multiple URIs results in a single call to [onQueryChange]. Changes
+ * to URIs in an active [batch] are recorded, but [onQueryChange] is only called once it ends.
+ *
+ * Notifications are delivered on a shared background thread rather than the main thread so that
+ * they can be handled without a thread hop, such as by running a cheap query inline.
+ *
+ * Registration and unregistration are binder calls, so [register] and [unregister] perform them
+ * on a shared background thread in the order they were requested. This keeps them off the
+ * calling thread (often the main thread) and ensures an unregistration requested while the
+ * registration is still pending is not lost.
+ */
+@RestrictTo(LIBRARY_GROUP)
+abstract class ChangeObserver(
+  private val filter: ((Uri) -> Boolean)?
+) : ContentObserver(notifications) {
+  private val lock = Any()
+  private var pending = false
+  private var pendingUris = LinkedHashSet<Uri>()
+  private var pendingFlags = 0
+
+  /** Invoked after a change which passes the filter has been recorded. */
+  protected abstract fun onQueryChange()
+
+  /**
+   * Asynchronously register this observer for [uri], then invoke [onRegistered] on the
+   * background thread. Querying from [onRegistered] guarantees no change after the query is
+   * missed.
+   */
+  fun register(
+    contentResolver: ContentResolver,
+    uri: Uri,
+    notifyForDescendants: Boolean,
+    onRegistered: () -> Unit
+  ) {
+    registrations.execute {
+      contentResolver.registerContentObserver(uri, notifyForDescendants, this)
+      onRegistered()
+    }
+  }
+
+  /** Asynchronously unregister this observer once any pending [register] has completed. */
+  fun unregister(contentResolver: ContentResolver) {
+    registrations.execute {
+      contentResolver.unregisterContentObserver(this)
+    }
+  }
+
+  /** Returns the changes recorded since the last call, or null if there were none. */
+  fun takeChange(): ContentChange? {
+    synchronized(lock) {
+      if (!pending) return null
+      val change = ContentChange(pendingUris, pendingFlags)
+      pending = false
+      pendingUris = LinkedHashSet()
+      pendingFlags = 0
+      return change
+    }
+  }
+
+  override fun onChange(selfChange: Boolean) {
+    onChanges(emptyList(), 0)
+  }
+
+  override fun onChange(selfChange: Boolean, uri: Uri?) {
+    onChanges(if (uri == null) emptyList() else listOf(uri), 0)
+  }
+
+  @RequiresApi(30)
+  override fun onChange(selfChange: Boolean, uris: Collection<Uri>, flags: Int) {
+    onChanges(uris, flags)
+  }
+
+  private fun onChanges(uris: Collection<Uri>, flags: Int) {
+    val filter = filter
+    val matched = if (filter == null) uris else uris.filter(filter)
+    if (uris.isNotEmpty() && matched.isEmpty()) {
+      return
+    }
+    synchronized(lock) {
+      pending = true
+      pendingUris.addAll(matched)
+      pendingFlags = pendingFlags or flags
+    }
+    if (!BatchRegistry.hold(this, matched)) {
+      onQueryChange()
+    }
+  }
+
+  /** Invoked when the [batch] which held this observer's changes has ended. */
+  internal fun release() {
+    onQueryChange()
+  }
+}
+
+/** Delivers change notifications, and releases the [batch]es which hold them. */
+internal val notifications: Handler by lazy {
+  val thread = HandlerThread("copper-notifications")
+  thread.start()
+  Handler(thread.looper)
+}
+
+private val registrations: Executor = Executors.newSingleThreadExecutor { runnable ->
+  Thread(runnable, "copper-observers").apply { isDaemon = true }
+}
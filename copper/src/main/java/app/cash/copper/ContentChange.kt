@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.content.ContentResolver
+import android.net.Uri
+
+/**
+ * One or more content changes which were coalesced into a single requery.
+ *
+ * @property uris The URIs reported as changed. Empty when the platform did not report which URIs
+ * changed.
+ * @property flags The bitwise union of the change flags such as [ContentResolver.NOTIFY_INSERT],
+ * [ContentResolver.NOTIFY_UPDATE], and [ContentResolver.NOTIFY_DELETE]. Only reported on API 30
+ * and newer, and zero otherwise.
+ */
+class ContentChange(
+  val uris: Set<Uri>,
+  val flags: Int
+) {
+  override fun toString() = "ContentChange(uris=$uris, flags=$flags)"
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.database.AbstractCursor
+import android.database.Cursor
+import androidx.annotation.CheckResult
+import androidx.annotation.WorkerThread
+
+/**
+ * An immutable copy of the rows of a [Cursor].
+ *
+ * Unlike a [Cursor], a snapshot holds no resources and does not need to be closed. It can be
+ * read any number of times and from multiple threads by creating a [new cursor][newCursor] for
+ * each reader.
+ */
+class CursorSnapshot private constructor(
+  private val columnNames: Array<String>,
+  /** Row-major cell values. Integers are [Long], floats are [Double], blobs are [ByteArray]. */
+  private val values: Array<Any?>,
+  /** The number of rows in this snapshot. */
+  val count: Int,
+  /** The number of [values] in each row, which exceeds [columnCount] for a [selection][select]. */
+  private val stride: Int = columnNames.size,
+  /** The index within each row of [values] for each column, or null when they are in order. */
+  private val columnIndexes: IntArray? = null
+) {
+  /** The number of columns in this snapshot. */
+  val columnCount: Int get() = columnNames.size
+
+  /** Returns a new cursor over this snapshot positioned before the first row. */
+  @CheckResult
+  fun newCursor(): Cursor = SnapshotCursor(this)
+
+  /** Returns a list containing the result of [mapper] for each row in this snapshot. */
+  @CheckResult
+  fun <T> mapRows(mapper: (Cursor) -> T): List<T> = mapRows(0, count, mapper)
+
+  /**
+   * Returns a list containing the result of [mapper] for each row from [fromIndex] (inclusive) to
+   * [toIndex] (exclusive). Ranges may be mapped concurrently from multiple threads.
+   */
+  @CheckResult
+  fun <T> mapRows(fromIndex: Int, toIndex: Int, mapper: (Cursor) -> T): List<T> {
+    if (fromIndex < 0 || toIndex > count || fromIndex > toIndex) {
+      throw IndexOutOfBoundsException("fromIndex: $fromIndex, toIndex: $toIndex, count: $count")
+    }
+    val cursor = newCursor()
+    cursor.moveToPosition(fromIndex - 1)
+    val items = ArrayList<T>(toIndex - fromIndex)
+    while (cursor.position + 1 < toIndex && cursor.moveToNext()) {
+      items.add(mapper(cursor))
+    }
+    return items
+  }
+
+  /**
+   * Returns a view of only [columns] of this snapshot, in the order given. The view shares the
+   * values of this snapshot rather than copying them.
+   *
+   * @throws IllegalArgumentException if this snapshot does not have one of [columns].
+   */
+  @CheckResult
+  fun select(columns: Array<String>): CursorSnapshot {
+    val indexes = IntArray(columns.size) { i ->
+      val column = columnNames.indexOf(columns[i])
+      require(column != -1) { "Snapshot has no column '${columns[i]}'" }
+      columnIndexes?.get(column) ?: column
+    }
+    return CursorSnapshot(columns.clone(), values, count, stride, indexes)
+  }
+
+  /** Returns a copy of only the rows at [rows] of this snapshot, in the order given. */
+  internal fun copyRows(rows: IntArray): CursorSnapshot {
+    val columnCount = columnNames.size
+    val copy = arrayOfNulls<Any>(rows.size * columnCount)
+    for (i in rows.indices) {
+      for (column in 0 until columnCount) {
+        copy[i * columnCount + column] = value(rows[i], column)
+      }
+    }
+    return CursorSnapshot(columnNames, copy, rows.size)
+  }
+
+  internal fun columnNames(): Array<String> = columnNames
+
+  internal fun value(row: Int, column: Int): Any? {
+    return values[row * stride + (columnIndexes?.get(column) ?: column)]
+  }
+
+  companion object {
+    /**
+     * Copy the rows of [cursor] from its current position through to the end. The cursor is
+     * left positioned after the last row and is not closed.
+     */
+    @JvmStatic
+    @WorkerThread
+    fun copyOf(cursor: Cursor): CursorSnapshot {
+      val columnNames = cursor.columnNames
+      val columnCount = columnNames.size
+      var values = arrayOfNulls<Any>(maxOf(cursor.count - cursor.position - 1, 0) * columnCount)
+      var count = 0
+      while (cursor.moveToNext()) {
+        val offset = count * columnCount
+        if (offset + columnCount > values.size) {
+          values = values.copyOf(maxOf(values.size * 2, offset + columnCount))
+        }
+        for (column in 0 until columnCount) {
+          values[offset + column] = cursor.readValue(column)
+        }
+        count++
+      }
+      return CursorSnapshot(columnNames, values, count)
+    }
+
+    private fun Cursor.readValue(column: Int): Any? {
+      return when (getType(column)) {
+        Cursor.FIELD_TYPE_NULL -> null
+        Cursor.FIELD_TYPE_INTEGER -> getLong(column)
+        Cursor.FIELD_TYPE_FLOAT -> getDouble(column)
+        Cursor.FIELD_TYPE_BLOB -> getBlob(column)
+        else -> getString(column)
+      }
+    }
+  }
+}
+
+/** A read-only cursor over a [CursorSnapshot] with conversions matching `MatrixCursor`. */
+private class SnapshotCursor(private val snapshot: CursorSnapshot) : AbstractCursor() {
+  override fun getCount() = snapshot.count
+
+  override fun getColumnNames() = snapshot.columnNames()
+
+  override fun getType(column: Int): Int {
+    return when (get(column)) {
+      null -> Cursor.FIELD_TYPE_NULL
+      is Double, is Float -> Cursor.FIELD_TYPE_FLOAT
+      is Number -> Cursor.FIELD_TYPE_INTEGER
+      is ByteArray -> Cursor.FIELD_TYPE_BLOB
+      else -> Cursor.FIELD_TYPE_STRING
+    }
+  }
+
+  override fun isNull(column: Int) = get(column) == null
+
+  override fun getString(column: Int): String? = get(column)?.toString()
+
+  override fun getBlob(column: Int): ByteArray? = get(column) as ByteArray?
+
+  override fun getShort(column: Int): Short {
+    val value = get(column) ?: return 0
+    return if (value is Number) value.toInt().toShort() else value.toString().toShort()
+  }
+
+  override fun getInt(column: Int): Int {
+    val value = get(column) ?: return 0
+    return if (value is Number) value.toInt() else value.toString().toInt()
+  }
+
+  override fun getLong(column: Int): Long {
+    val value = get(column) ?: return 0L
+    return if (value is Number) value.toLong() else value.toString().toLong()
+  }
+
+  override fun getFloat(column: Int): Float {
+    val value = get(column) ?: return 0f
+    return if (value is Number) value.toFloat() else value.toString().toFloat()
+  }
+
+  override fun getDouble(column: Int): Double {
+    val value = get(column) ?: return 0.0
+    return if (value is Number) value.toDouble() else value.toString().toDouble()
+  }
+
+  private fun get(column: Int): Any? {
+    checkPosition()
+    if (column < 0 || column >= snapshot.columnCount) {
+      throw IndexOutOfBoundsException(
+        "Requested column: $column, # of columns: ${snapshot.columnCount}"
+      )
+    }
+    return snapshot.value(position, column)
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.net.Uri
+import android.os.SystemClock
+import androidx.annotation.RestrictTo
+import androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP
+
+/**
+ * A change filter which rejects the notifications caused by writes whose results are already
+ * known. Each [expected][expect] write suppresses one notification for its URI or a descendant of
+ * it. Expectations which are not met within [timeoutMillis] lapse, so a provider which does not
+ * notify cannot cause a later, unrelated change to be ignored. Once a write has completed its
+ * expectations should be [settled][settle] so that they only remain for as long as it takes an
+ * already sent notification to be delivered.
+ */
+@RestrictTo(LIBRARY_GROUP)
+class EchoFilter(private val timeoutMillis: Long) : (Uri) -> Boolean {
+  private val expected = ArrayList<Echo>()
+
+  /** Suppress the next notification for [uri] or one of its descendants. */
+  fun expect(uri: Uri) {
+    synchronized(expected) {
+      expected += Echo(uri, SystemClock.uptimeMillis() + timeoutMillis)
+    }
+  }
+
+  /** Withdraw an expectation for [uri], such as when its write failed. */
+  fun cancel(uri: Uri) {
+    synchronized(expected) {
+      val index = expected.indexOfFirst { it.uri == uri }
+      if (index != -1) {
+        expected.removeAt(index)
+      }
+    }
+  }
+
+  /**
+   * Limit the expectations for [uri] to [graceMillis] from now. Call this once the write has
+   * completed, since a provider which notified a different URI would otherwise leave the
+   * expectation to suppress an unrelated change until it lapses.
+   */
+  fun settle(uri: Uri, graceMillis: Long) {
+    synchronized(expected) {
+      val deadline = SystemClock.uptimeMillis() + graceMillis
+      for (echo in expected) {
+        if (echo.uri == uri && echo.deadline > deadline) {
+          echo.deadline = deadline
+        }
+      }
+    }
+  }
+
+  /** Returns false if [uri] is an expected echo, consuming the expectation. */
+  override fun invoke(uri: Uri): Boolean {
+    synchronized(expected) {
+      val now = SystemClock.uptimeMillis()
+      expected.removeAll { it.deadline < now }
+      val index = expected.indexOfFirst { uri.isSameOrDescendantOf(it.uri) }
+      if (index == -1) {
+        return true
+      }
+      expected.removeAt(index)
+      return false
+    }
+  }
+
+  private class Echo(val uri: Uri, var deadline: Long)
+}
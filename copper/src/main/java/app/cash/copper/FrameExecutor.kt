@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.os.Handler
+import android.os.Looper
+import android.view.Choreographer
+import androidx.annotation.RestrictTo
+import androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP
+import java.util.concurrent.Executor
+
+/**
+ * An [Executor] which runs tasks on the main thread at the start of the next frame. All tasks
+ * submitted before a frame are run together in that frame's callback, before layout, so that
+ * several results delivered through it cause a single layout pass.
+ */
+@RestrictTo(LIBRARY_GROUP)
+object FrameExecutor : Executor {
+  private val mainHandler = Handler(Looper.getMainLooper())
+  private val lock = Any()
+  private var tasks = ArrayList<Runnable>()
+  private var scheduled = false
+
+  private val frameCallback = Choreographer.FrameCallback { runTasks() }
+  private val postFrameCallback = Runnable {
+    Choreographer.getInstance().postFrameCallback(frameCallback)
+  }
+
+  override fun execute(command: Runnable) {
+    synchronized(lock) {
+      tasks.add(command)
+      if (scheduled) return
+      scheduled = true
+    }
+    // Choreographer instances are per-thread so the main thread's must be obtained on it.
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      postFrameCallback.run()
+    } else {
+      mainHandler.post(postFrameCallback)
+    }
+  }
+
+  private fun runTasks() {
+    val tasks = synchronized(lock) {
+      val tasks = tasks
+      this.tasks = ArrayList()
+      scheduled = false
+      tasks
+    }
+    for (task in tasks) {
+      task.run()
+    }
+  }
+}
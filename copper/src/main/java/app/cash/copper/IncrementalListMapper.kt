@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.database.Cursor
+import android.net.Uri
+import androidx.annotation.RestrictTo
+import androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP
+import androidx.annotation.WorkerThread
+
+/**
+ * Maps a stream of queries to lists, refreshing only the changed rows when an [ObservedQuery] was
+ * triggered solely by row URIs of the form `<query uri>/<id>`. Any other query, or one for more
+ * than [MAX_PATCHED_ROWS] rows, is executed in full. Not thread-safe: queries must be mapped
+ * sequentially.
+ */
+@RestrictTo(LIBRARY_GROUP)
+class IncrementalListMapper<T>(
+  private val idColumn: String,
+  private val mapper: (Cursor) -> T
+) {
+  private var ids = LongArray(0)
+  private var items: List<T>? = null
+
+  /** Returns the updated list, or null if the query returned a null cursor. */
+  @WorkerThread
+  fun map(query: Query): List<T>? {
+    val items = items
+    if (items != null && query is ObservedQuery) {
+      val changedIds = query.changedRowIds()
+      if (changedIds != null && changedIds.size <= MAX_PATCHED_ROWS) {
+        return patch(query.query, items, changedIds)
+      }
+    }
+    return mapAll(query)
+  }
+
+  private fun mapAll(query: Query): List<T>? {
+    return query.run()?.use { cursor ->
+      val idIndex = cursor.getColumnIndexOrThrow(idColumn)
+      val ids = LongArray(cursor.count)
+      val items = ArrayList<T>(cursor.count)
+      while (cursor.moveToNext()) {
+        ids[items.size] = cursor.getLong(idIndex)
+        items.add(mapper(cursor))
+      }
+      this.ids = ids.copyOf(items.size)
+      this.items = items
+      items
+    }
+  }
+
+  private fun patch(
+    query: ContentResolverQuery,
+    current: List<T>,
+    changedIds: LongArray
+  ): List<T>? {
+    val narrowed = query.whereIn(idColumn, Array(changedIds.size) { changedIds[it].toString() })
+    return narrowed.run()?.use { cursor ->
+      val idIndex = cursor.getColumnIndexOrThrow(idColumn)
+      val ids = ids
+      val indexOf = LongKeyMap.Builder<Int>(ids.size).apply {
+        for (index in ids.indices) {
+          put(ids[index], index)
+        }
+      }.build()
+
+      // Every changed row which is no longer returned has been deleted.
+      val deleted = BooleanArray(ids.size)
+      for (id in changedIds) {
+        val index = indexOf[id] ?: continue
+        deleted[index] = true
+      }
+
+      val items = ArrayList(current)
+      val insertedIds = LongArray(cursor.count)
+      val inserted = ArrayList<T>(cursor.count)
+      while (cursor.moveToNext()) {
+        val id = cursor.getLong(idIndex)
+        val index = indexOf[id]
+        if (index == null) {
+          insertedIds[inserted.size] = id
+          inserted.add(mapper(cursor))
+        } else {
+          deleted[index] = false
+          items[index] = mapper(cursor)
+        }
+      }
+
+      // Compact the kept rows in a single pass, then append the inserted rows.
+      val patchedIds = LongArray(ids.size + inserted.size)
+      var size = 0
+      for (index in ids.indices) {
+        if (!deleted[index]) {
+          patchedIds[size] = ids[index]
+          items[size] = items[index]
+          size++
+        }
+      }
+      items.subList(size, items.size).clear()
+      insertedIds.copyInto(patchedIds, size, 0, inserted.size)
+      items.addAll(inserted)
+
+      this.ids = patchedIds.copyOf(items.size)
+      this.items = items
+      items
+    }
+  }
+
+  /** Returns the ids of the changed rows, or null if any change was not for a single row. */
+  private fun ObservedQuery.changedRowIds(): LongArray? {
+    val uris = change?.uris ?: return null
+    if (uris.isEmpty()) return null
+    val ids = LongArray(uris.size)
+    for ((index, uri) in uris.withIndex()) {
+      ids[index] = rowIdOf(query.uri, uri) ?: return null
+    }
+    return ids
+  }
+
+  private fun rowIdOf(tableUri: Uri, uri: Uri): Long? {
+    val tableSegments = tableUri.pathSegments
+    val segments = uri.pathSegments
+    if (uri.scheme != tableUri.scheme ||
+      uri.authority != tableUri.authority ||
+      segments.size != tableSegments.size + 1 ||
+      segments.subList(0, tableSegments.size) != tableSegments
+    ) {
+      return null
+    }
+    return segments.last().toLongOrNull()
+  }
+
+  private companion object {
+    /**
+     * The most changed rows which are queried by id. Beyond this a full query is cheaper, and the
+     * ids also stay within the 999 arguments which SQLite binds by default.
+     */
+    const val MAX_PATCHED_ROWS = 500
+  }
+}
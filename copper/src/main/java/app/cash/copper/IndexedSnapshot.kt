@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.database.Cursor
+import androidx.annotation.RestrictTo
+import androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP
+import androidx.annotation.WorkerThread
+
+/**
+ * A [CursorSnapshot] of a table along with an index of its rows by the integer value of a key
+ * column, so that individual rows can be looked up and compared without a query.
+ */
+@RestrictTo(LIBRARY_GROUP)
+class IndexedSnapshot private constructor(
+  private val snapshot: CursorSnapshot,
+  /** The keys of [snapshot]. Only their positions are used, so the values are not boxed rows. */
+  private val keys: LongKeyMap<Unit>,
+  /** The row of [snapshot] for each key of [keys], in their insertion order. */
+  private val rows: IntArray
+) {
+  /** Returns the row of [key], or -1 if there is no such row. */
+  private fun rowOf(key: Long): Int {
+    val index = keys.indexOfKey(key)
+    return if (index == -1) -1 else rows[index]
+  }
+
+  /**
+   * Returns the result of [mapper] for a cursor positioned on the row of [key], or null if there
+   * is no such row.
+   */
+  fun <T> mapRow(key: Long, mapper: (Cursor) -> T): T? {
+    val row = rowOf(key)
+    if (row == -1) return null
+    val cursor = snapshot.newCursor()
+    cursor.moveToPosition(row)
+    return mapper(cursor)
+  }
+
+  /** Returns true if the row of [key] is absent from both snapshots or has equal values in both. */
+  fun rowEquals(key: Long, other: IndexedSnapshot): Boolean {
+    val row = rowOf(key)
+    val otherRow = other.rowOf(key)
+    if (row == -1 || otherRow == -1) return row == otherRow
+    if (snapshot.columnCount != other.snapshot.columnCount) return false
+    for (column in 0 until snapshot.columnCount) {
+      val value = snapshot.value(row, column)
+      val otherValue = other.snapshot.value(otherRow, column)
+      if (value is ByteArray && otherValue is ByteArray) {
+        if (!value.contentEquals(otherValue)) return false
+      } else if (value != otherValue) {
+        return false
+      }
+    }
+    return true
+  }
+
+  companion object {
+    /**
+     * Copy the rows of [cursor] and index them by [keyColumn]. When multiple rows share a key,
+     * the last row is indexed. It is an error for [keyColumn] to be null in any row.
+     */
+    @JvmStatic
+    @WorkerThread
+    fun copyOf(cursor: Cursor, keyColumn: String): IndexedSnapshot {
+      val keyIndex = cursor.getColumnIndexOrThrow(keyColumn)
+      val snapshot = CursorSnapshot.copyOf(cursor)
+      val builder = LongKeyMap.Builder<Unit>(snapshot.count)
+      val reader = snapshot.newCursor()
+      while (reader.moveToNext()) {
+        check(!reader.isNull(keyIndex)) { "Cursor returned null key in column '$keyColumn'" }
+        builder.put(reader.getLong(keyIndex), Unit)
+      }
+      val keys = builder.build()
+      val rows = IntArray(keys.size)
+      reader.moveToPosition(-1)
+      while (reader.moveToNext()) {
+        rows[keys.indexOfKey(reader.getLong(keyIndex))] = reader.position
+      }
+      return IndexedSnapshot(snapshot, keys, rows)
+    }
+  }
+}
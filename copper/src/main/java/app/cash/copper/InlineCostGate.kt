@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.os.Looper
+import androidx.annotation.RestrictTo
+import androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP
+
+/**
+ * Decides whether a query is cheap enough to run on the thread which received it instead of
+ * dispatching it to another thread. Work is [measured][measure] wherever it runs, and it may run
+ * inline once its recent average cost is below [thresholdMicros]. The first query is always
+ * dispatched, as is any query received on the main thread. A threshold of 0 disables inline
+ * execution.
+ *
+ * A single thread delivers the change notifications of every observed query, so work received
+ * on it only runs inline while its cost is also below [MAX_NOTIFICATION_INLINE_MICROS], however
+ * large [thresholdMicros] is. One slow query can then only delay the notifications of others by
+ * about that much before it is dispatched.
+ */
+@RestrictTo(LIBRARY_GROUP)
+class InlineCostGate(thresholdMicros: Long) {
+  init {
+    require(thresholdMicros >= 0) { "thresholdMicros < 0: $thresholdMicros" }
+  }
+
+  private val thresholdNanos = thresholdMicros * 1_000
+  @Volatile private var costNanos = -1.0
+
+  fun shouldRunInline(): Boolean {
+    val costNanos = costNanos
+    if (costNanos < 0.0 || costNanos >= thresholdNanos) return false
+    val looper = Looper.myLooper() ?: return true
+    return when (looper) {
+      Looper.getMainLooper() -> false
+      notifications.looper -> costNanos < MAX_NOTIFICATION_INLINE_MICROS * 1_000
+      else -> true
+    }
+  }
+
+  fun <R> measure(block: () -> R): R {
+    val startNanos = System.nanoTime()
+    try {
+      return block()
+    } finally {
+      val cost = (System.nanoTime() - startNanos).toDouble()
+      val costNanos = costNanos
+      this.costNanos = if (costNanos < 0.0) cost else costNanos + WEIGHT * (cost - costNanos)
+    }
+  }
+
+  companion object {
+    /** The most that work received on the notification thread may cost to run inline. */
+    const val MAX_NOTIFICATION_INLINE_MICROS = 200L
+
+    /** The weight of the most recent query in the average. */
+    private const val WEIGHT = 0.3
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@file:JvmName("LazyMappedLists")
+
+package app.cash.copper
+
+import android.database.Cursor
+import androidx.annotation.CheckResult
+
+/**
+ * Returns a list view of this snapshot which invokes [mapper] for a row only when its index is
+ * first accessed. Mapped items are retained so each row is mapped at most once.
+ *
+ * Since mapping is deferred, exceptions thrown by [mapper] surface from [List.get] rather than
+ * when the list is created.
+ */
+@CheckResult
+fun <T> CursorSnapshot.mapLazily(mapper: (Cursor) -> T): List<T> {
+  return LazyMappedList(this, mapper)
+}
+
+private class LazyMappedList<T>(
+  private val snapshot: CursorSnapshot,
+  private val mapper: (Cursor) -> T
+) : AbstractList<T>(), RandomAccess {
+  private val cursor = snapshot.newCursor()
+  private val items = arrayOfNulls<Any?>(snapshot.count).apply { fill(UNMAPPED) }
+
+  override val size: Int get() = snapshot.count
+
+  override fun get(index: Int): T {
+    synchronized(this) {
+      val item = items[index]
+      if (item !== UNMAPPED) {
+        @Suppress("UNCHECKED_CAST")
+        return item as T
+      }
+      check(cursor.moveToPosition(index))
+      val mapped = mapper(cursor)
+      items[index] = mapped
+      return mapped
+    }
+  }
+
+  private companion object {
+    val UNMAPPED = Any()
+  }
+}
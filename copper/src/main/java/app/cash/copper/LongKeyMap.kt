@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+/**
+ * An immutable map from primitive `long` keys to values. Lookups probe an open-addressing hash
+ * table and never box the key. `int` keys are widened to `long`.
+ *
+ * Entries are ordered by insertion and can be iterated with [keyAt] and [valueAt].
+ */
+class LongKeyMap<V : Any> private constructor(
+  private val keys: LongArray,
+  private val values: Array<Any?>,
+  /** Indices into [keys] and [values] plus one, or zero for an empty slot. */
+  private val table: IntArray,
+  /** The number of entries in this map. */
+  val size: Int
+) {
+  fun isEmpty(): Boolean = size == 0
+
+  operator fun get(key: Long): V? {
+    val index = indexOf(key)
+    @Suppress("UNCHECKED_CAST")
+    return if (index == -1) null else values[index] as V
+  }
+
+  operator fun get(key: Int): V? = get(key.toLong())
+
+  fun containsKey(key: Long): Boolean = indexOf(key) != -1
+
+  fun containsKey(key: Int): Boolean = containsKey(key.toLong())
+
+  /** Returns the index of [key] in insertion order, or -1 if it is absent. */
+  internal fun indexOfKey(key: Long): Int = indexOf(key)
+
+  /** Returns the key of the entry at [index] in insertion order. */
+  fun keyAt(index: Int): Long {
+    checkIndex(index)
+    return keys[index]
+  }
+
+  /** Returns the value of the entry at [index] in insertion order. */
+  fun valueAt(index: Int): V {
+    checkIndex(index)
+    @Suppress("UNCHECKED_CAST")
+    return values[index] as V
+  }
+
+  private fun indexOf(key: Long): Int {
+    val mask = table.size - 1
+    var slot = slotOf(key, mask)
+    while (true) {
+      val entry = table[slot]
+      if (entry == 0) return -1
+      if (keys[entry - 1] == key) return entry - 1
+      slot = (slot + 1) and mask
+    }
+  }
+
+  private fun checkIndex(index: Int) {
+    if (index < 0 || index >= size) {
+      throw IndexOutOfBoundsException("Index: $index, Size: $size")
+    }
+  }
+
+  override fun toString(): String {
+    return buildString {
+      append('{')
+      for (i in 0 until size) {
+        if (i > 0) append(", ")
+        append(keys[i]).append('=').append(values[i])
+      }
+      append('}')
+    }
+  }
+
+  /**
+   * Accumulates entries for a [LongKeyMap]. Putting a key which is already present replaces its
+   * value but retains its original position.
+   */
+  class Builder<V : Any>(expectedSize: Int = 16) {
+    private var keys = LongArray(maxOf(expectedSize, 1))
+    private var values = arrayOfNulls<Any>(keys.size)
+    private var table = IntArray(tableSizeFor(keys.size))
+    private var size = 0
+
+    fun put(key: Long, value: V): Builder<V> {
+      val mask = table.size - 1
+      var slot = slotOf(key, mask)
+      while (true) {
+        val entry = table[slot]
+        if (entry == 0) break
+        if (keys[entry - 1] == key) {
+          values[entry - 1] = value
+          return this
+        }
+        slot = (slot + 1) and mask
+      }
+      if (size == keys.size) {
+        keys = keys.copyOf(size * 2)
+        values = values.copyOf(size * 2)
+      }
+      keys[size] = key
+      values[size] = value
+      size++
+      table[slot] = size
+      if (size * 2 > table.size) {
+        rehash(table.size * 2)
+      }
+      return this
+    }
+
+    fun put(key: Int, value: V): Builder<V> = put(key.toLong(), value)
+
+    fun build(): LongKeyMap<V> {
+      return LongKeyMap(keys.copyOf(size), values.copyOf(size), table.copyOf(), size)
+    }
+
+    private fun rehash(capacity: Int) {
+      val table = IntArray(capacity)
+      val mask = capacity - 1
+      for (i in 0 until size) {
+        var slot = slotOf(keys[i], mask)
+        while (table[slot] != 0) {
+          slot = (slot + 1) and mask
+        }
+        table[slot] = i + 1
+      }
+      this.table = table
+    }
+  }
+
+  private companion object {
+    /** Returns a power of two which keeps the table at most half full for [size] entries. */
+    fun tableSizeFor(size: Int): Int {
+      return Integer.highestOneBit(maxOf(size, 1) * 2 - 1) * 2
+    }
+
+    fun slotOf(key: Long, mask: Int): Int {
+      val hash = key * -0x61c8864680b583ebL
+      return (hash xor (hash ushr 32)).toInt() and mask
+    }
+  }
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.database.Cursor
+
+/** Accumulates cursor rows into a primitive `long`, such as a sum or a maximum timestamp. */
+fun interface LongRowFolder {
+  /** Returns the result of combining [accumulator] with the current row of [cursor]. */
+  fun fold(accumulator: Long, cursor: Cursor): Long
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.content.ContentResolver
+import android.database.Cursor
+import androidx.annotation.CheckResult
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit.MILLISECONDS
+
+/**
+ * Batches lookups of rows by key into a single query of many keys.
+ *
+ * Each [Query] returned from [lookup] selects the rows of [key]'s query whose [keyColumn] is
+ * equal to one value. Running it waits up to [windowMillis] for lookups of other values to also be
+ * run, and then executes one query of all of them with `keyColumn IN (?, ?, ...)`. Each waiting
+ * lookup receives a cursor over only its own rows. Use a batcher when many observers of single
+ * rows, such as one per visible list item, requery the same table for each change to it:
+ * ```
+ * contentResolver.observeQuery(uri)
+ *   .map { batcher.lookup(id.toString()) }
+ *   .mapToOne(mapper = Item.MAPPER)
+ * ```
+ *
+ * Batches with more values than SQLite can bind to a single statement are split into multiple
+ * queries. Values are matched against the [string value][Cursor.getString] of [keyColumn] in the
+ * result, which must be included in [key]'s projection.
+ *
+ * **Running a lookup blocks its thread for the whole window.** A shared background thread
+ * closes each batch's window after [windowMillis], after which the first lookup of the batch runs
+ * the query, while every lookup waits for the window to close and the query to finish. Each
+ * pending lookup therefore pins a thread, and a lookup which no other joins still pays the full
+ * window in latency. Run lookups on a pool sized for the expected number of concurrent lookups,
+ * such as the I/O scheduler or dispatcher, and keep the window short. Only batch lookups which
+ * are actually issued together, such as by the items of a list responding to the same change.
+ */
+class LookupBatcher @JvmOverloads constructor(
+  private val contentResolver: ContentResolver,
+  private val key: QueryKey,
+  private val keyColumn: String,
+  private val windowMillis: Long = DEFAULT_WINDOW_MILLIS
+) {
+  /** The batch which lookups join until its window closes. Guarded by this. */
+  private var pending: Batch? = null
+
+  init {
+    require(key.projection?.contains(keyColumn) != false) {
+      "Projection does not include key column '$keyColumn'"
+    }
+  }
+
+  /**
+   * Returns a query of the rows whose [keyColumn] is [value], batched with concurrent lookups.
+   * Running the query blocks the calling thread for up to [windowMillis] plus the time taken to
+   * query the whole batch.
+   */
+  @CheckResult
+  fun lookup(value: String): Query {
+    return object : Query {
+      override fun run(): Cursor? = load(value)
+    }
+  }
+
+  private fun load(value: String): Cursor? {
+    val batch: Batch
+    val isFirst: Boolean
+    synchronized(this) {
+      val current = pending
+      isFirst = current == null
+      batch = current ?: Batch().also { pending = it }
+      batch.values += value
+    }
+    if (isFirst) {
+      lookupWindows.schedule({ close(batch) }, windowMillis, MILLISECONDS)
+      // The first lookup runs the batch on its own thread once the window has closed.
+      if (!batch.awaitClosed()) {
+        close(batch) // Run the batch early for the lookups waiting on it.
+      }
+      batch.execute()
+    } else {
+      batch.await()
+    }
+    return batch.cursorOf(value)
+  }
+
+  /** Stop [batch] from accepting further lookups. */
+  private fun close(batch: Batch) {
+    synchronized(this) {
+      if (pending === batch) {
+        pending = null
+      }
+    }
+    batch.closed.countDown()
+  }
+
+  private fun query(values: Collection<String>): Map<String, CursorSnapshot?> {
+    val query = ContentResolverQuery(
+      contentResolver, key.uri, key.projection, key.selection, key.selectionArgs, key.sortOrder
+    )
+    val chunkSize = (MAX_SQL_PARAMETERS - (key.selectionArgs?.size ?: 0)).coerceAtLeast(1)
+    val results = HashMap<String, CursorSnapshot?>(values.size)
+    for (chunk in values.chunked(chunkSize)) {
+      val snapshot = query.whereIn(keyColumn, chunk.toTypedArray()).run()?.use { cursor ->
+        CursorSnapshot.copyOf(cursor)
+      }
+      if (snapshot == null) {
+        chunk.forEach { value -> results[value] = null }
+        continue
+      }
+      val rows = HashMap<String, MutableList<Int>>()
+      val cursor = snapshot.newCursor()
+      val keyIndex = cursor.getColumnIndexOrThrow(keyColumn)
+      while (cursor.moveToNext()) {
+        rows.getOrPut(cursor.getString(keyIndex)) { ArrayList(1) }.add(cursor.position)
+      }
+      for (value in chunk) {
+        results[value] = snapshot.copyRows(rows[value]?.toIntArray() ?: IntArray(0))
+      }
+    }
+    return results
+  }
+
+  private inner class Batch {
+    val values = LinkedHashSet<String>()
+    val closed = CountDownLatch(1)
+    private val done = CountDownLatch(1)
+    // Written before the latch is released and only read after awaiting it.
+    private var results: Map<String, CursorSnapshot?> = emptyMap()
+    private var error: Throwable? = null
+
+    fun execute() {
+      try {
+        results = query(values)
+      } catch (e: Throwable) {
+        error = e
+      } finally {
+        done.countDown()
+      }
+    }
+
+    /** Returns false if interrupted before the window closed. */
+    fun awaitClosed(): Boolean {
+      try {
+        closed.await()
+        return true
+      } catch (e: InterruptedException) {
+        Thread.currentThread().interrupt()
+        return false
+      }
+    }
+
+    fun await() {
+      var interrupted = false
+      while (true) {
+        try {
+          done.await()
+          break
+        } catch (e: InterruptedException) {
+          interrupted = true
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt()
+      }
+    }
+
+    fun cursorOf(value: String): Cursor? {
+      error?.let { throw it }
+      return results[value]?.newCursor()
+    }
+  }
+
+  companion object {
+    /** The default time for which the first lookup of a batch waits for others to join it. */
+    const val DEFAULT_WINDOW_MILLIS = 10L
+
+    /** The most arguments which SQLite binds to a statement by default before version 3.32. */
+    private const val MAX_SQL_PARAMETERS = 999
+  }
+}
+
+private val lookupWindows: ScheduledExecutorService =
+  Executors.newSingleThreadScheduledExecutor { runnable ->
+    Thread(runnable, "copper-lookups").apply { isDaemon = true }
+  }
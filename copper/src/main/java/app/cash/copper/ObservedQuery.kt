@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.database.Cursor
+import androidx.annotation.RestrictTo
+import androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP
+
+/**
+ * A [Query] emitted by `observeQuery` along with the content change which triggered it.
+ *
+ * Of the query operators, only `pauseWhileInactive` preserves the change, merging the changes of
+ * the queries it skips into the one it emits. Operators which wrap queries, such as `withDeadline`
+ * and `rateLimitByCost`, do not emit [ObservedQuery] instances, so the change is lost and operators
+ * which inspect it, such as `mapToListIncremental`, fall back to running the full query.
+ */
+class ObservedQuery @JvmOverloads constructor(
+  val query: ContentResolverQuery,
+  /** The changes which triggered this query, or null for the initial query. */
+  val change: ContentChange?,
+  /**
+   * The position of this query among those emitted to a single subscriber, starting from 0 for
+   * the initial query. A query with a greater generation always reflects later content.
+   */
+  val generation: Long = 0L
+) : Query {
+  override fun run(): Cursor? = query.run()
+}
+
+/**
+ * Returns [next] carrying the changes of both [skipped] and [next], for when [skipped] was
+ * replaced by [next] without being run. The result has no change if either query lacks one, so
+ * that operators which inspect it run the full query.
+ */
+@RestrictTo(LIBRARY_GROUP)
+fun coalesce(skipped: Query, next: Query): Query {
+  if (next !is ObservedQuery) return next
+  val skippedChange = (skipped as? ObservedQuery)?.change
+  val nextChange = next.change
+  val change = when {
+    skippedChange == null || nextChange == null -> null
+    // An empty set means the changed URIs are unknown, which must survive the merge.
+    skippedChange.uris.isEmpty() || nextChange.uris.isEmpty() ->
+      ContentChange(emptySet(), skippedChange.flags or nextChange.flags)
+    else -> {
+      ContentChange(skippedChange.uris + nextChange.uris, skippedChange.flags or nextChange.flags)
+    }
+  }
+  return ObservedQuery(next.query, change, next.generation)
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.database.Cursor
+import androidx.annotation.RestrictTo
+import androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP
+
+/**
+ * The union of the projections of queries which are otherwise equal, so that a single query of
+ * every requested column can serve each of them.
+ *
+ * Columns are only ever added. A projection of `null` requests all columns.
+ */
+@RestrictTo(LIBRARY_GROUP)
+class ProjectionUnion {
+  private val columns = LinkedHashSet<String>()
+  private var allColumns = false
+
+  /** The projection which covers every added projection, or null for all columns. */
+  val projection: Array<String>? get() = if (allColumns) null else columns.toTypedArray()
+
+  /** Add [projection], returning true if the union grew and must therefore be queried again. */
+  fun add(projection: Array<String>?): Boolean {
+    if (allColumns) return false
+    if (projection == null) {
+      allColumns = true
+      return true
+    }
+    var grew = false
+    for (column in projection) {
+      if (columns.add(column)) grew = true
+    }
+    return grew
+  }
+
+  /** A [snapshot] of the result of a query with the union [projection]. */
+  class Result(private val projection: Array<String>?, private val snapshot: CursorSnapshot) {
+    /**
+     * Returns a query of the columns of [projection] from this result, or null if they were not
+     * all queried. Each cursor returned from the query is a view over the shared snapshot.
+     */
+    fun queryOf(projection: Array<String>?): Query? {
+      val union = this.projection
+      if (union != null) {
+        if (projection == null || !union.asList().containsAll(projection.asList())) return null
+      }
+      val view = if (projection == null) snapshot else snapshot.select(projection)
+      return object : Query {
+        override fun run(): Cursor = view.newCursor()
+      }
+    }
+  }
+}
@@ -18,6 +18,7 @@ package app.cash.copper
 import android.content.ContentResolver
 import android.database.Cursor
 import android.net.Uri
+import android.os.CancellationSignal
 import androidx.annotation.CheckResult
 import androidx.annotation.WorkerThread
 
@@ -37,10 +38,13 @@ interface Query {
   fun run(): Cursor?
 }
 
-/** [Query] wrapper around [ContentResolver.query] */
+/**
+ * [Query] wrapper around [ContentResolver.query]. Two instances are equal when they use the same
+ * [ContentResolver] and equal arguments, comparing arrays by their contents.
+ */
 class ContentResolverQuery(
   private val contentResolver: ContentResolver,
-  private val uri: Uri,
+  val uri: Uri,
   private val projection: Array<String>?,
   private val selection: String?,
   private val selectionArgs: Array<String>?,
@@ -49,4 +53,49 @@ class ContentResolverQuery(
   override fun run(): Cursor? {
     return contentResolver.query(uri, projection, selection, selectionArgs, sortOrder)
   }
+
+  /**
+   * Execute the query, allowing it to be canceled with [cancellationSignal]. Cancellation results
+   * in an [android.os.OperationCanceledException] if the provider supports it.
+   */
+  @WorkerThread
+  fun run(cancellationSignal: CancellationSignal?): Cursor? {
+    return contentResolver.query(
+      uri, projection, selection, selectionArgs, sortOrder, cancellationSignal
+    )
+  }
+
+  /**
+   * Returns a copy of this query which is further restricted to rows whose [column] is equal to
+   * one of [values]. The values are bound as selection arguments.
+   */
+  @CheckResult
+  fun whereIn(column: String, values: Array<String>): ContentResolverQuery {
+    val clause = values.joinToString(prefix = "$column IN (", postfix = ")") { "?" }
+    val selection = if (selection == null) clause else "($selection) AND $clause"
+    val selectionArgs = (selectionArgs ?: emptyArray()) + values
+    return ContentResolverQuery(
+      contentResolver, uri, projection, selection, selectionArgs, sortOrder
+    )
+  }
+
+  override fun equals(other: Any?): Boolean {
+    return other is ContentResolverQuery &&
+      contentResolver == other.contentResolver &&
+      uri == other.uri &&
+      projection.contentEquals(other.projection) &&
+      selection == other.selection &&
+      selectionArgs.contentEquals(other.selectionArgs) &&
+      sortOrder == other.sortOrder
+  }
+
+  override fun hashCode(): Int {
+    var result = contentResolver.hashCode()
+    result = 31 * result + uri.hashCode()
+    result = 31 * result + projection.contentHashCode()
+    result = 31 * result + selection.hashCode()
+    result = 31 * result + selectionArgs.contentHashCode()
+    result = 31 * result + sortOrder.hashCode()
+    return result
+  }
 }
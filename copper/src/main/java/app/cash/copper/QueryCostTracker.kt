@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.database.Cursor
+import android.database.CursorWrapper
+import androidx.annotation.RestrictTo
+import androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP
+import kotlin.math.ceil
+
+/**
+ * Measures the cost of the queries which it [wraps][wrap], from the start of [Query.run] until
+ * the returned cursor is closed, which includes mapping the cursor's rows. The recent cost is an
+ * exponentially weighted average so that a single slow query has limited effect.
+ *
+ * [delayMillis] returns how long to wait before starting the next query so that query work
+ * occupies no more than [dutyCycle] of the elapsed time. Times are read from [nanoTime], which
+ * must be monotonic.
+ */
+@RestrictTo(LIBRARY_GROUP)
+class QueryCostTracker(
+  private val dutyCycle: Double,
+  private val nanoTime: () -> Long = System::nanoTime
+) {
+  init {
+    require(dutyCycle > 0.0 && dutyCycle <= 1.0) { "dutyCycle not in (0, 1]: $dutyCycle" }
+  }
+
+  private val lock = Any()
+  private var started = false
+  private var lastStartNanos = 0L
+  private var costNanos = 0.0
+
+  fun delayMillis(): Long {
+    synchronized(lock) {
+      if (!started) return 0L
+      val nextStartNanos = lastStartNanos + (costNanos / dutyCycle).toLong()
+      val delayNanos = nextStartNanos - nanoTime()
+      return if (delayNanos <= 0L) 0L else ceil(delayNanos / 1_000_000.0).toLong()
+    }
+  }
+
+  fun wrap(query: Query): Query = object : Query {
+    override fun run(): Cursor? {
+      val startNanos = nanoTime()
+      synchronized(lock) {
+        started = true
+        lastStartNanos = startNanos
+      }
+      val cursor = try {
+        query.run()
+      } catch (e: Throwable) {
+        record(startNanos)
+        throw e
+      }
+      if (cursor == null) {
+        record(startNanos)
+        return null
+      }
+      return object : CursorWrapper(cursor) {
+        private var closed = false
+
+        override fun close() {
+          super.close()
+          if (!closed) {
+            closed = true
+            record(startNanos)
+          }
+        }
+      }
+    }
+  }
+
+  private fun record(startNanos: Long) {
+    val cost = nanoTime() - startNanos
+    synchronized(lock) {
+      costNanos = if (costNanos == 0.0) {
+        cost.toDouble()
+      } else {
+        costNanos + WEIGHT * (cost - costNanos)
+      }
+    }
+  }
+
+  private companion object {
+    /** The weight of the most recent query in the average. */
+    const val WEIGHT = 0.3
+  }
+}
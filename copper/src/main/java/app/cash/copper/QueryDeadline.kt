@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.database.Cursor
+import android.os.CancellationSignal
+import android.os.OperationCanceledException
+import androidx.annotation.RestrictTo
+import androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Wraps queries so that each is canceled through a [CancellationSignal] if the provider has not
+ * returned a cursor within [timeoutMillis]. When a query times out [onTimeout] is invoked on the
+ * thread which ran it and the wrapped query returns null, which mapping operators ignore so the
+ * previous result remains current. When [reuseLastResult] is true, the last successful result is
+ * instead returned again so that it is re-emitted. This requires copying every result.
+ *
+ * Only queries emitted from `observeQuery` can be canceled. Other queries are run unchanged.
+ */
+@RestrictTo(LIBRARY_GROUP)
+class QueryDeadline(
+  private val timeoutMillis: Long,
+  private val reuseLastResult: Boolean,
+  private val onTimeout: (Query) -> Unit
+) {
+  init {
+    require(timeoutMillis > 0) { "timeoutMillis <= 0: $timeoutMillis" }
+  }
+
+  @Volatile private var lastResult: CursorSnapshot? = null
+
+  fun wrap(query: Query): Query {
+    val contentResolverQuery = when (query) {
+      is ContentResolverQuery -> query
+      is ObservedQuery -> query.query
+      else -> return query
+    }
+    return object : Query {
+      override fun run() = execute(query, contentResolverQuery)
+    }
+  }
+
+  private fun execute(query: Query, contentResolverQuery: ContentResolverQuery): Cursor? {
+    val signal = CancellationSignal()
+    // Set by whichever of the deadline and the returning provider comes first.
+    val settled = AtomicBoolean()
+    val timeout = deadlines.schedule({
+      if (settled.compareAndSet(false, true)) {
+        signal.cancel()
+      }
+    }, timeoutMillis, MILLISECONDS)
+
+    val cursor = try {
+      contentResolverQuery.run(signal)
+    } catch (e: OperationCanceledException) {
+      if (!settled.get()) throw e
+      return timedOut(query)
+    } finally {
+      timeout.cancel(false)
+    }
+    if (!settled.compareAndSet(false, true)) {
+      // The provider returned after the deadline had already canceled the signal, which the
+      // cursor may still observe while it is read.
+      cursor?.close()
+      return timedOut(query)
+    }
+    if (cursor == null || !reuseLastResult) {
+      return cursor
+    }
+    val snapshot = cursor.use { CursorSnapshot.copyOf(it) }
+    lastResult = snapshot
+    return snapshot.newCursor()
+  }
+
+  private fun timedOut(query: Query): Cursor? {
+    onTimeout(query)
+    return lastResult?.newCursor()
+  }
+}
+
+private val deadlines: ScheduledExecutorService =
+  Executors.newSingleThreadScheduledExecutor { runnable ->
+    Thread(runnable, "copper-deadlines").apply { isDaemon = true }
+  }
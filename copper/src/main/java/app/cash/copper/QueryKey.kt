@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.content.ContentResolver
+import android.net.Uri
+
+/**
+ * The arguments of an observed [ContentResolver.query]. Two keys are equal when all of their
+ * arguments are equal, comparing arrays by their contents.
+ *
+ * Arrays are copied on construction and must not be modified once returned from a property.
+ */
+class QueryKey @JvmOverloads constructor(
+  val uri: Uri,
+  projection: Array<String>? = null,
+  val selection: String? = null,
+  selectionArgs: Array<String>? = null,
+  val sortOrder: String? = null,
+  val notifyForDescendants: Boolean = false
+) {
+  val projection: Array<String>? = projection?.clone()
+  val selectionArgs: Array<String>? = selectionArgs?.clone()
+
+  override fun equals(other: Any?): Boolean {
+    return other is QueryKey &&
+      uri == other.uri &&
+      projection.contentEquals(other.projection) &&
+      selection == other.selection &&
+      selectionArgs.contentEquals(other.selectionArgs) &&
+      sortOrder == other.sortOrder &&
+      notifyForDescendants == other.notifyForDescendants
+  }
+
+  override fun hashCode(): Int {
+    var result = uri.hashCode()
+    result = 31 * result + projection.contentHashCode()
+    result = 31 * result + selection.hashCode()
+    result = 31 * result + selectionArgs.contentHashCode()
+    result = 31 * result + sortOrder.hashCode()
+    result = 31 * result + notifyForDescendants.hashCode()
+    return result
+  }
+
+  override fun toString(): String {
+    return "QueryKey(uri=$uri, projection=${projection?.contentToString()}, " +
+      "selection=$selection, selectionArgs=${selectionArgs?.contentToString()}, " +
+      "sortOrder=$sortOrder, notifyForDescendants=$notifyForDescendants)"
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package app.cash.copper
+
+import android.database.Cursor
+import android.database.CursorWrapper
+import androidx.annotation.RestrictTo
+import androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP
+
+/**
+ * Limits on the size of a mapped result so that a single unexpectedly large query cannot exhaust
+ * memory. A result exceeds the budget when it has more than [maxRows] rows, or when the estimated
+ * size of its cells exceeds [maxBytes]. The estimate counts the cells which the mapper reads: 8
+ * bytes for each number, the UTF-8 length of each string, and the length of each blob, matching
+ * their size in a `CursorWindow` rather than the size of the mapped objects.
+ *
+ * Bytes are measured from the values as the mapper reads them, so no cell is read twice, but the
+ * row which exceeds [maxBytes] has already been mapped when it is discarded.
+ */
+class ResultBudget @JvmOverloads constructor(
+  val maxRows: Int = Int.MAX_VALUE,
+  val maxBytes: Long = Long.MAX_VALUE,
+  val overflow: Overflow = Overflow.TRUNCATE
+) {
+  init {
+    require(maxRows >= 0) { "maxRows < 0: $maxRows" }
+    require(maxBytes >= 0) { "maxBytes < 0: $maxBytes" }
+  }
+
+  enum class Overflow {
+    /** Stop mapping at the budget and mark the result as [truncated][BoundedList.isTruncated]. */
+    TRUNCATE,
+    /** Stop mapping at the budget and throw [ResultTooLargeException]. */
+    ERROR,
+  }
+
+  /** Map the rows of [cursor] after its current position until the budget is exceeded. */
+  @RestrictTo(LIBRARY_GROUP)
+  fun <T> map(cursor: Cursor, mapper: (Cursor) -> T): BoundedList<T> {
+    val count = cursor.count
+    if (count > maxRows && overflow == Overflow.ERROR) {
+      throw ResultTooLargeException("Cursor returned $count rows which exceeds $maxRows")
+    }
+    val items = ArrayList<T>(minOf(count, maxRows))
+    val measuring = if (maxBytes != Long.MAX_VALUE) MeasuringCursor(cursor) else null
+    val rows = measuring ?: cursor
+    while (cursor.moveToNext()) {
+      if (items.size == maxRows) {
+        return overflow(items, "Cursor returned more than $maxRows rows")
+      }
+      val item = mapper(rows)
+      if (measuring != null && measuring.bytes > maxBytes) {
+        return overflow(items, "Cursor returned more than $maxBytes bytes")
+      }
+      items.add(item)
+    }
+    return BoundedList(items, isTruncated = false)
+  }
+
+  private fun <T> overflow(items: List<T>, message: String): BoundedList<T> {
+    if (overflow == Overflow.ERROR) {
+      throw ResultTooLargeException(message)
+    }
+    return BoundedList(items, isTruncated = true)
+  }
+
+  /** Totals the estimated size of the values which are read through it. */
+  private class MeasuringCursor(cursor: Cursor) : CursorWrapper(cursor) {
+    var bytes = 0L
+
+    override fun getString(columnIndex: Int): String? {
+      val value = super.getString(columnIndex)
+      if (value != null) bytes += utf8Length(value)
+      return value
+    }
+
+    override fun getBlob(columnIndex: Int): ByteArray? {
+      val value = super.getBlob(columnIndex)
+      if (value != null) bytes += value.size
+      return value
+    }
+
+    override fun getShort(columnIndex: Int): Short {
+      bytes += 8
+      return super.getShort(columnIndex)
+    }
+
+    override fun getInt(columnIndex: Int): Int {
+      bytes += 8
+      return super.getInt(columnIndex)
+    }
+
+    override fun getLong(columnIndex: Int): Long {
+      bytes += 8
+      return super.getLong(columnIndex)
+    }
+
+    override fun getFloat(columnIndex: Int): Float {
+      bytes += 8
+      return super.getFloat(columnIndex)
+    }
+
+    override fun getDouble(columnIndex: Int): Double {
+      bytes += 8
+      return super.getDouble(columnIndex)
+    }
+
+    private fun utf8Length(value: String): Int {
+      var length = 0
+      for (char in value) {
+        length += when {
+          char.code < 0x80 -> 1
+          char.code < 0x800 -> 2
+          char.isSurrogate() -> 2 // Each half of a 4 byte pair.
+          else -> 3
+        }
+      }
+      return length
+    }
+  }
+
+  override fun toString(): String {
+    return "ResultBudget(maxRows=$maxRows, maxBytes=$maxBytes, overflow=$overflow)"
+  }
+}